@@ -0,0 +1,43 @@
+package com.mran.charnn;
+
+// Adagrad: each parameter's step is scaled down by the root of its summed
+// squared gradients. The memory update, scaled step and weight decay are
+// done in a single in-place pass, so an update allocates nothing.
+public class Adagrad implements Optimizer {
+	private double learningRate;
+	private double epsilon;
+	
+	public Adagrad(double learningRate) {
+		this(learningRate, 0.00000001);
+	}
+	
+	public Adagrad(double learningRate, double epsilon) {
+		this.learningRate = learningRate;
+		this.epsilon = epsilon;
+	}
+	
+	public void update(double[] param, double[] grad, double[] memory, double reg) {
+		if (grad.length != param.length || memory.length != param.length) throw new RuntimeException("Illegal vector dimensions.");
+		double scale = -1.0*learningRate;
+		for (int i = 0; i < param.length; i++) {
+			double g = grad[i];
+			double m = memory[i] + g*g;
+			memory[i] = m;
+			param[i] += (g*scale) / Math.sqrt(m + epsilon) + param[i]*reg;
+		}
+	}
+	
+	// the same update in float32, kept free of double conversions so the loop vectorizes
+	public void update(float[] param, float[] grad, float[] memory, double reg) {
+		if (grad.length != param.length || memory.length != param.length) throw new RuntimeException("Illegal vector dimensions.");
+		float scale = (float) (-1.0*learningRate);
+		float eps = (float) epsilon;
+		float r = (float) reg;
+		for (int i = 0; i < param.length; i++) {
+			float g = grad[i];
+			float m = memory[i] + g*g;
+			memory[i] = m;
+			param[i] += (g*scale) / (float) Math.sqrt(m + eps) + param[i]*r;
+		}
+	}
+}
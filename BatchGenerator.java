@@ -0,0 +1,226 @@
+package com.mran.charnn;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/******************************************************************************
+ *  Continuous batching: many generation requests stepped together.
+ *
+ *  Each tick gathers the input column of every active request into one
+ *  matrix and runs the recurrence and output projection as matrix-matrix
+ *  products, the same kernels training uses for its minibatch streams.
+ *  Each weight loaded is applied to several requests' states at once, so
+ *  the weights are streamed from memory once per tick rather than once
+ *  per request.
+ *
+ *  A request's seed is prefilled on the thread that submits it, so the
+ *  batch only ever runs characters that are actually sampled. Requests
+ *  can be submitted from any thread and join the batch at the next tick;
+ *  one that finishes, is cancelled or is stopped by its listener leaves
+ *  it, and the last row is moved into its place so the active requests
+ *  always fill the top rows of the state matrix. Only the thread running
+ *  the scheduler (run(), or a caller of tick()) touches the batch itself.
+ *
+ ******************************************************************************/
+
+public class BatchGenerator implements Runnable {
+	private final Weights weights;
+	private final int maxBatch;
+	private final PrefixCache cache;  // seed states shared between requests, or null
+	private final LinkedBlockingQueue<Request> pending = new LinkedBlockingQueue<Request>();
+
+	private final Request[] slots;  // row -> request, the first <active> in use
+	private volatile int active = 0;
+	private final int[] inputs;     // row -> character fed in this tick
+	private Tensor state, next;     // hidden states before and after the tick, one row per request
+	private final Tensor logits;    // unnormalized next-character scores, one row per request
+	private final double[] p;       // one request's next-character scores, for its sampler
+	private final Tensor pRow;      // <p> as a 1-row tensor
+
+	public BatchGenerator(Weights weights, int maxBatch) {
+		this(weights, maxBatch, null);
+	}
+
+	// With a <cache>, each request resumes its seed from the longest prefix held there
+	public BatchGenerator(Weights weights, int maxBatch, PrefixCache cache) {
+		if (maxBatch < 1) throw new IllegalArgumentException("Batch size must be positive");
+		this.weights = weights;
+		this.maxBatch = maxBatch;
+		this.cache = cache;
+		boolean float32 = weights.Whh.isFloat();
+		slots = new Request[maxBatch];
+		inputs = new int[maxBatch];
+		state = new Tensor(maxBatch, weights.hiddenSize(), float32);
+		next = new Tensor(maxBatch, weights.hiddenSize(), float32);
+		logits = new Tensor(maxBatch, weights.vocabSize(), float32);
+		p = new double[weights.vocabSize()];
+		pRow = new Tensor(p, 1, p.length, p.length, 0);
+	}
+
+	// Queue up <n> characters following <seeds>, after feeding the seeds in
+	// on the calling thread; see Weights.generate(String, int)
+	public Request submit(String seeds, int n) {
+		return submit(seeds, n, null);
+	}
+
+	// As submit(String, int), also passing each character to <listener> as
+	// soon as it is sampled; the request stops early if it returns false.
+	// The listener is called on the scheduler's thread.
+	public Request submit(String seeds, int n, GenerationListener listener) {
+		return submit(seeds, n, listener, new Sampler());
+	}
+
+	// As submit(String, int, GenerationListener), drawing the characters with <sampler>
+	public Request submit(String seeds, int n, GenerationListener listener, Sampler sampler) {
+		if (sampler == null) throw new IllegalArgumentException("Sampler must not be null");
+		Vocabulary vocab = weights.vocabulary();
+		int[] seedIndexs = vocab.encode(seeds, 0);
+		if (seedIndexs.length == 0) throw new IllegalArgumentException("Seed must not be empty");
+		Generator prefill = weights.generator();
+		int x = cache != null ? cache.prefill(prefill, seedIndexs) : prefill.prefillSeeds(seedIndexs);
+		Request request = new Request(vocab, sampler, prefill.state(), x, n, listener);
+		pending.add(request);
+		return request;
+	}
+
+	// requests currently in the batch
+	public int active() {
+		return active;
+	}
+
+	// Run ticks until the thread is interrupted, waiting while there is
+	// nothing to do; requests still queued or running are then cancelled
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (active == 0) { admit(pending.take()); }
+				tick();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (int r = 0; r < active; r++) { slots[r].finish(new CancellationException()); }
+			active = 0;
+			for (Request request; (request = pending.poll()) != null; ) { request.finish(new CancellationException()); }
+		}
+	}
+
+	// Admit queued requests into free rows, then advance every active
+	// request by one character. Returns false if there was nothing to run.
+	public boolean tick() {
+		for (Request request; active < maxBatch && (request = pending.poll()) != null; ) { admit(request); }
+		int batch = active;
+		if (batch == 0) return false;
+
+		for (int r = 0; r < batch; r++) { inputs[r] = slots[r].x; }
+		Tensor h = state.rows(0, batch), hNext = next.rows(0, batch), y = logits.rows(0, batch);
+		Matrix.gatherColumns(weights.Wxh, inputs, 0, hNext);
+		Matrix.gemm(false, true, h, weights.Whh, hNext);
+		Matrix.addToRows(hNext, weights.bh);
+		Matrix.tanhInPlace(hNext);
+		Matrix.zero(y);
+		Matrix.gemm(false, true, hNext, weights.Why, y);
+
+		// last row first, so a finished request can take the last row's place
+		for (int r = batch - 1; r >= 0; r--) {
+			Request request = slots[r];
+			Matrix.copy(y.row(r), pRow);
+			if (!request.advance(request.sampler.sample(p, weights.by))) {
+				int last = --batch;
+				Matrix.copy(hNext.row(last), hNext.row(r));
+				slots[r] = slots[last];
+				slots[last] = null;
+			}
+		}
+		active = batch;
+
+		Tensor swap = state;
+		state = next;
+		next = swap;
+		return true;
+	}
+
+	private void admit(Request request) {
+		if (request.cancelled) {
+			request.finish(new CancellationException());
+			return;
+		}
+		if (request.remaining <= 0) {
+			request.finish(null);
+			return;
+		}
+		Matrix.copy(new Tensor(request.h, 1, request.h.length, request.h.length, 0), state.row(active));
+		request.h = null;
+		slots[active++] = request;
+	}
+
+	// One queued or running generation; any thread may wait on or cancel it
+	public static class Request {
+		private final Vocabulary vocab;
+		private final Sampler sampler;
+		private final GenerationListener listener;
+		private final StringBuilder text;
+		private double[] h; // the state after the seeds, until the request joins the batch
+		private int x, remaining;
+		private volatile boolean cancelled = false;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Throwable failure;
+
+		Request(Vocabulary vocab, Sampler sampler, double[] h, int x, int n, GenerationListener listener) {
+			this.vocab = vocab;
+			this.sampler = sampler;
+			this.listener = listener;
+			this.text = new StringBuilder(Math.max(n, 0));
+			this.h = h;
+			this.x = x;
+			this.remaining = n;
+		}
+
+		// Take the character sampled this tick; false once the request is over
+		private boolean advance(int index) {
+			if (cancelled) {
+				finish(new CancellationException());
+				return false;
+			}
+			x = index;
+			remaining--;
+			String c = vocab.symbol(index);
+			text.append(c);
+			boolean more = remaining > 0;
+			if (listener != null) {
+				try {
+					more &= listener.onCharacter(c);
+				} catch (RuntimeException e) {
+					finish(e);
+					return false;
+				}
+			}
+			if (!more) finish(null);
+			return more;
+		}
+
+		private void finish(Throwable failure) {
+			this.failure = failure;
+			done.countDown();
+		}
+
+		// Stop the request at its next tick; get() then throws CancellationException
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		// Wait for the request to end and return the characters it generated
+		public String get() throws InterruptedException, ExecutionException {
+			done.await();
+			if (failure instanceof CancellationException) throw (CancellationException) failure;
+			if (failure != null) throw new ExecutionException(failure);
+			return text.toString();
+		}
+	}
+}
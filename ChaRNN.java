@@ -3,18 +3,17 @@ package com.mran.charnn;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.simple.JSONObject;
 
@@ -22,369 +21,658 @@ import com.google.gson.*;
 
 public class ChaRNN {
 	// Data
-	private String data;
+	private Corpus corpus; // the input file as vocabulary indices, memory-mapped
 	private int vocabSize;
 	private String inputPath;
 	private int dataSize = 0;
 	
 	// Chars
 	private ArrayList<String> chars;
-	private HashMap<String, Integer> charToIndex;
-	private HashMap<Integer, String> indexToChar;
+	private Vocabulary vocab;
 	
 	// Hyperparameters
 	private int hiddenSize;
 	private int seqLength;
+	private int batchSize = 1; // number of sequence streams trained side by side
 	private double learningRate;
 	private double global_reg = -0.001;
+	private boolean float32 = false; // weights, activations and Adagrad memory in single precision
 	
 	// Weights & biases
-	private double[][] Wxh;
-	private double[][] Whh;
-	private double[][] Why;
+	private Tensor Wxh;
+	private Tensor Whh;
+	private Tensor Why;
 	private double[] bh;
 	private double[] by;
 	
-	// Previous state
+	// Previous state, one row of hiddenSize per stream (across all shards)
 	private double[] hprev = new double[hiddenSize];
 	
 	// Memory variables for Adagrad
-	private double[][] mWxh;
-	private double[][] mWhh;
-	private double[][] mWhy;
+	private Tensor mWxh;
+	private Tensor mWhh;
+	private Tensor mWhy;
 	private double[] mbh;
 	private double[] mby;
+	private Optimizer optimizer;
+	
+	// Activation and gradient buffers for loss()
+	private Workspace workspace;
+	private Gradients gradients;
+	
+	// Training progress, saved in checkpoints so training can resume exactly
+	private int step = 0; // steps completed
+	private double smoothLoss;
+	private int[] cursors; // data position of each stream, null until trained
+	private long reportTime;
+	private long reportChars;
 
 	public ChaRNN(String inPath, int hSize, int sLength, double lRate) {
+		this(inPath, hSize, sLength, lRate, 1);
+	}
+	
+	public ChaRNN(String inPath, int hSize, int sLength, double lRate, int bSize) {
+		this(inPath, hSize, sLength, lRate, bSize, false);
+	}
+	
+	// With <float32> the weight matrices, activations and Adagrad memory are
+	// kept in single precision; biases, hidden state and the loss stay double
+	public ChaRNN(String inPath, int hSize, int sLength, double lRate, int bSize, boolean float32) {
+		if (bSize < 1) throw new IllegalArgumentException("Batch size must be positive");
 		this.inputPath = inPath;
 		this.hiddenSize = hSize;
 		this.seqLength = sLength;
 		this.learningRate = lRate;
+		this.batchSize = bSize;
+		this.float32 = float32;
 		
 		try {
 			prepareInput();
 			
-			double wxh[][] = Matrix.add(Matrix.random(hiddenSize, vocabSize), -0.5);
-			Wxh = Matrix.multiply(wxh, 0.01);
+			Tensor wxh = Matrix.add(Matrix.random(hiddenSize, vocabSize), -0.5);
+			Wxh = Matrix.multiply(wxh, 0.01).convert(float32);
 			
-			double[][] whh = Matrix.add(Matrix.random(hiddenSize, hiddenSize), -0.5);
-			Whh = Matrix.multiply(whh, 0.01);
+			Tensor whh = Matrix.add(Matrix.random(hiddenSize, hiddenSize), -0.5);
+			Whh = Matrix.multiply(whh, 0.01).convert(float32);
 			
-			double[][] why = Matrix.add(Matrix.random(vocabSize, hiddenSize), -0.5);
-			Why = Matrix.multiply(why, 0.01);
+			Tensor why = Matrix.add(Matrix.random(vocabSize, hiddenSize), -0.5);
+			Why = Matrix.multiply(why, 0.01).convert(float32);
 			
 			bh = new double[hiddenSize];
 			by = new double[vocabSize];
 			
-			mWxh = new double[Wxh.length][Wxh[0].length];
-			mWhh = new double[Whh.length][Whh[0].length];
-			mWhy = new double[Why.length][Why[0].length];
+			mWxh = new Tensor(Wxh.rows, Wxh.cols, float32);
+			mWhh = new Tensor(Whh.rows, Whh.cols, float32);
+			mWhy = new Tensor(Why.rows, Why.cols, float32);
 			mbh = new double[bh.length];
 			mby = new double[by.length];
+			optimizer = new Adagrad(learningRate);
 			
 		} catch (IOException e) {
 			System.out.println(e.getMessage());
 		}	
 	}
 	
+	// Load a model from a binary checkpoint, or from a JSON one exported by exportJson()
 	public ChaRNN(String path) {
-		JsonParser parser = new JsonParser();
-
+		this(path, false);
+	}
+	
+	// With <inferenceOnly> the training corpus is never opened and the
+	// optimizer state is dropped; the model can sample but not train
+	public ChaRNN(String path, boolean inferenceOnly) {
 		try {
-            		Gson gson = new Gson();
-            		JsonElement element = parser.parse(new FileReader(path));
-            		Map<String, Object> obj = gson.fromJson(element, Map.class);
-            		inputPath = obj.get("inputPath").toString();
-           		vocabSize = (int) Double.parseDouble(obj.get("vocabSize").toString());
-            		hiddenSize = (int) Double.parseDouble(obj.get("hiddenSize").toString());
-            		seqLength = (int) Double.parseDouble(obj.get("seqLength").toString());
-            		learningRate = Double.parseDouble(obj.get("learningRate").toString());
-            
-            		chars = gson.fromJson(obj.get("chars").toString(), ArrayList.class);
-            
-            		Wxh = gson.fromJson(obj.get("Wxh").toString(), double[][].class);
-            		Whh = gson.fromJson(obj.get("Whh").toString(), double[][].class);
-            		Why = gson.fromJson(obj.get("Why").toString(), double[][].class);
-            		bh = gson.fromJson(obj.get("bh").toString(), double[].class);
-            		by = gson.fromJson(obj.get("by").toString(), double[].class);
-            
-            		hprev = gson.fromJson(obj.get("hprev").toString(), double[].class);
-            
-            		prepareInput();
+			if (Checkpoint.isBinary(path)) {
+				loadBinary(path);
+			} else {
+				importJson(path);
+			}
+			
+			if (inferenceOnly) {
+				prepareChars(chars);
+				mWxh = mWhh = mWhy = null;
+				mbh = mby = null;
+				return;
+			}
+			
+			prepareInput();
             
-            		mWxh = new double[Wxh.length][Wxh[0].length];
-			mWhh = new double[Whh.length][Whh[0].length];
-			mWhy = new double[Why.length][Why[0].length];
-			mbh = new double[bh.length];
-			mby = new double[by.length];
-        	} catch (IOException e) {
-            		e.printStackTrace();
-        	}
+			if (mWxh == null) {
+				mWxh = new Tensor(Wxh.rows, Wxh.cols, float32);
+				mWhh = new Tensor(Whh.rows, Whh.cols, float32);
+				mWhy = new Tensor(Why.rows, Why.cols, float32);
+				mbh = new double[bh.length];
+				mby = new double[by.length];
+			}
+			optimizer = new Adagrad(learningRate);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
-	public void prepareInput() throws IOException {
-		try {
-			data = readFile(inputPath, StandardCharsets.UTF_8);
-		} catch (IOException e) { throw e; }
-
-		chars = listFromSetFromString(data);
-		dataSize = data.length();
-		vocabSize = chars.size();
+	private void loadBinary(String path) throws IOException {
+		Checkpoint in = Checkpoint.read(path);
+		inputPath = in.inputPath;
+		vocabSize = in.vocabSize;
+		hiddenSize = in.hiddenSize;
+		seqLength = in.seqLength;
+		batchSize = in.batchSize;
+		learningRate = in.learningRate;
+		float32 = in.float32;
+		chars = new ArrayList<String>(in.chars);
+		
+		Wxh = in.Wxh;
+		Whh = in.Whh;
+		Why = in.Why;
+		bh = in.bh;
+		by = in.by;
 		
-		charToIndex = new HashMap<String, Integer>();
-		indexToChar = new HashMap<Integer, String>();
-		ListIterator<String> iterator = chars.listIterator();
-		while (iterator.hasNext()) {
-			int index = iterator.nextIndex();
-			String next = iterator.next();
-			charToIndex.put(next, index);
-			indexToChar.put(index, next);
+		if (in.mWxh != null) {
+			mWxh = in.mWxh;
+			mWhh = in.mWhh;
+			mWhy = in.mWhy;
+			mbh = in.mbh;
+			mby = in.mby;
+			step = in.step;
+			smoothLoss = in.smoothLoss;
+			cursors = in.cursors;
+			if (in.hprev != null) { hprev = in.hprev; }
 		}
 	}
 	
-	public void prepareChars(ArrayList<String> chars) {
-		charToIndex = new HashMap<String, Integer>();
-		indexToChar = new HashMap<Integer, String>();
-		ListIterator<String> iterator = chars.listIterator();
-		while (iterator.hasNext()) {
-			int index = iterator.nextIndex();
-			String next = iterator.next();
-			charToIndex.put(next, index);
-			indexToChar.put(index, next);
+	private void importJson(String path) throws IOException {
+		JsonParser parser = new JsonParser();
+		Gson gson = new Gson();
+		JsonElement element = parser.parse(new FileReader(path));
+		Map<String, Object> obj = gson.fromJson(element, Map.class);
+		inputPath = obj.get("inputPath").toString();
+		vocabSize = (int) Double.parseDouble(obj.get("vocabSize").toString());
+		hiddenSize = (int) Double.parseDouble(obj.get("hiddenSize").toString());
+		seqLength = (int) Double.parseDouble(obj.get("seqLength").toString());
+		learningRate = Double.parseDouble(obj.get("learningRate").toString());
+		if (obj.containsKey("batchSize")) {
+			batchSize = (int) Double.parseDouble(obj.get("batchSize").toString());
+		}
+		if (obj.containsKey("float32")) {
+			float32 = Boolean.parseBoolean(obj.get("float32").toString());
 		}
+		
+		chars = gson.fromJson(obj.get("chars").toString(), ArrayList.class);
+		
+		Wxh = Tensor.fromArray(gson.fromJson(obj.get("Wxh").toString(), double[][].class)).convert(float32);
+		Whh = Tensor.fromArray(gson.fromJson(obj.get("Whh").toString(), double[][].class)).convert(float32);
+		Why = Tensor.fromArray(gson.fromJson(obj.get("Why").toString(), double[][].class)).convert(float32);
+		bh = gson.fromJson(obj.get("bh").toString(), double[].class);
+		by = gson.fromJson(obj.get("by").toString(), double[].class);
+		
+		hprev = gson.fromJson(obj.get("hprev").toString(), double[].class);
+	}
+	
+	// Stream the input file into an encoded, memory-mapped corpus. A new
+	// model takes its vocabulary from the file; a loaded one keeps the
+	// vocabulary it was trained with and skips any characters outside it.
+	public void prepareInput() throws IOException {
+		corpus = Corpus.open(inputPath, chars == null ? null : new Vocabulary(chars));
+		prepareChars(corpus.vocabulary().symbols());
+		if (Wxh != null && Wxh.cols != vocabSize) throw new IOException("Checkpoint vocabulary does not match its weights");
+		dataSize = corpus.size();
+		
+		if (corpus.skipped() > 0) { System.out.println("Skipped " + corpus.skipped() + " characters not in the model's vocabulary"); }
+	}
+	
+	public void prepareChars(List<String> chars) {
+		this.chars = new ArrayList<String>(chars);
+		vocab = new Vocabulary(chars);
+		vocabSize = vocab.size();
 	}
 	
 	public Loss loss(int[] inputs, int[] targets, double[] hprev) {
-		HashMap<Integer, Double[]> xs = new HashMap<Integer, Double[]>();
-		HashMap<Integer, Double[]> hs = new HashMap<Integer, Double[]>();
-		HashMap<Integer, Double[]> ys = new HashMap<Integer, Double[]>();
-		HashMap<Integer, Double[]> ps = new HashMap<Integer, Double[]>();
-		hs.put(new Integer(-1), toObject(hprev));
+		return loss(inputs, targets, new Tensor(hprev, 1, hiddenSize, hiddenSize, 0));
+	}
+	
+	// Minibatched loss over hprev.rows independent streams. <inputs> and
+	// <targets> are time-major: element t*batch + b belongs to stream b at
+	// timestep t. The loss is averaged over streams, as are the gradients.
+	public Loss loss(int[] inputs, int[] targets, Tensor hprev) {
+		int batch = hprev.rows;
+		if (gradients == null) { gradients = new Gradients(hiddenSize, vocabSize, float32); }
+		return loss(inputs, targets, hprev, workspace(inputs.length / batch, batch), gradients);
+	}
+	
+	// loss() into caller-owned buffers, so several threads can run it at once
+	private Loss loss(int[] inputs, int[] targets, Tensor hprev, Workspace ws, Gradients grads) {
+		int batch = hprev.rows;
+		if (hprev.cols != hiddenSize || inputs.length % batch != 0 || targets.length != inputs.length) {
+			throw new RuntimeException("Illegal matrix dimensions.");
+		}
+		int length = inputs.length / batch;
+		if (ws.length() < length || ws.batch() != batch) throw new RuntimeException("Illegal matrix dimensions.");
+		Tensor[] hs = ws.hStep; // hs[t+1] is the state after input t, hs[0] is hprev
+		Tensor[] ps = ws.pStep;
+		Matrix.copy(hprev, hs[0]);
 		double loss = 0;
 
-		// Forward pass
-		for (int i = 0; i < inputs.length; i++) {
-			// One-hot encoding for xs
-			double[] encoding = new double[vocabSize];
-			encoding[inputs[i]] = 1;
-			xs.put(new Integer(i), toObject(encoding));
-			
-			// Hidden state
-			double[] Wxh_dot_xs = Matrix.multiply(Wxh, toRaw(xs.get(i)));
-			double[] Whh_dot_hs = Matrix.multiply(Whh, toRaw(hs.get(new Integer(i-1))));
-			
-			double[] state = Matrix.add(Matrix.add(Wxh_dot_xs, Whh_dot_hs), bh);
-			
-			state = Matrix.tanh(state);
-			
-			hs.put(i, toObject(state));
+		// Forward pass, all streams at once
+		for (int i = 0; i < length; i++) {
+			// Hidden state; Wxh times a one-hot input is just a column of Wxh
+			Tensor state = hs[i+1];
+			Matrix.gatherColumns(Wxh, inputs, i*batch, state);
+			Matrix.gemm(false, true, hs[i], Whh, state);
+			Matrix.addToRows(state, bh);
+			Matrix.tanhInPlace(state);
 			
 			// Unnormalized log probabilities for next characters
-			double[] Why_dot_hs = Matrix.multiply(Why, toRaw(hs.get(i)));
-			ys.put(i, toObject(Matrix.add(Why_dot_hs, by)));
+			Tensor probabilities = ps[i];
+			Matrix.zero(probabilities);
+			Matrix.gemm(false, true, state, Why, probabilities);
+			Matrix.addToRows(probabilities, by);
 			
 			// Probabilities for next characters (logits)
-			double[] probabilities = Matrix.softmax(toRaw(ys.get(i)));
-			ps.put(i, toObject(probabilities));
+			Matrix.softmaxInPlace(probabilities);
 			
 			// Cross-entropy loss
-			loss += -1 * Math.log(toRaw(ps.get(i))[targets[i]]);
+			for (int b = 0; b < batch; b++) {
+				// floored so a probability that underflowed to zero (easily done in float32) keeps the loss finite
+				loss += -1 * Math.log(Math.max(probabilities.get(b, targets[i*batch + b]), Double.MIN_VALUE));
+			}
 		}
 		
 		// Backward pass
-		double[][] dWxh = new double[Wxh.length][Wxh[0].length];
-		double[][] dWhh = new double[Whh.length][Whh[0].length];
-		double[][] dWhy = new double[Why.length][Why[0].length];
-		double[] dbh = new double[bh.length];
-		double[] dby = new double[by.length];
-		double[] dhnext = new double[hs.get(0).length];
+		grads.zero();
+		Tensor dh = ws.dh;
+		Tensor dhnext = ws.dhnext;
+		Matrix.zero(dhnext);
 
-		for (int n = inputs.length-1; n >= 0; n--) {
-			double[] dy = toRaw(ps.get(n).clone());
-			dy[targets[n]] -= 1; // basically one-hot encoding minus the scores/probability, so delta y
-			dWhy = Matrix.add(dWhy, Matrix.multiply(dy, toRaw(hs.get(n))));
-			dby = Matrix.add(dby, dy);
-			
-			double[] dh = Matrix.multiply(Matrix.transpose(Why), dy);
-			dh = Matrix.add(dh, dhnext); // backprop into h
-			double[] state = toRaw(hs.get(n));
-			double[] statesq = Matrix.elementMult(state, state);
-			double[] dhraw = Matrix.elementMult(Matrix.subtract(1.0, statesq), dh);
-			dbh = Matrix.add(dbh, dhraw);
+		for (int n = length-1; n >= 0; n--) {
+			Tensor dy = ps[n]; // the probabilities are turned into dy in place
+			for (int b = 0; b < batch; b++) {
+				int target = targets[n*batch + b];
+				dy.set(b, target, dy.get(b, target) - 1); // basically one-hot encoding minus the scores/probability, so delta y
+			}
+			Matrix.addColumnSums(dy, grads.dby);
 			
-			double[][] dhraw_dot_xsT = Matrix.multiply(dhraw, toRaw(xs.get(n)));
-			dWxh = Matrix.add(dWxh, dhraw_dot_xsT);
+			Matrix.copy(dhnext, dh);
+			Matrix.gemm(false, false, dy, Why, dh); // backprop into h
+			Tensor state = hs[n+1];
+			Tensor dhraw = ws.dhrawStep[n];
+			Matrix.tanhBackward(state, dh, dhraw); // backprop through tanh
+			Matrix.addColumnSums(dhraw, grads.dbh);
 			
-			double[][] dhraw_dot_hsT = Matrix.multiply(dhraw, toRaw(hs.get(n-1)));
-			dWhh = Matrix.add(dWhh, dhraw_dot_hsT);
+			Matrix.scatterAddColumns(grads.dWxh, inputs, n*batch, dhraw); // dhraw * xs^T only touches one column per stream
 			
-			double[] WhhT_dot_dhraw = Matrix.multiply(Matrix.transpose(Whh), dhraw);
-			dhnext = WhhT_dot_dhraw;
-
+			Matrix.zero(dhnext);
+			Matrix.gemm(false, false, dhraw, Whh, dhnext);
 		}
 		
-		dWxh = Matrix.clip(dWxh, -5, 5);
-		dWhh = Matrix.clip(dWhh, -5, 5);
-		dWhy = Matrix.clip(dWhy, -5, 5);
-		dbh = Matrix.clip(dbh, -5, 5);
-		dby = Matrix.clip(dby, -5, 5);
+		// Weight gradients for the whole sequence at once: dWhy = dY^T * H, dWhh = dHraw^T * Hprev
+		int rows = length*batch;
+		Matrix.gemm(true, false, ws.ps.rows(0, rows), ws.hs.rows(batch, rows), grads.dWhy);
+		Matrix.gemm(true, false, ws.dhraw.rows(0, rows), ws.hs.rows(0, rows), grads.dWhh);
+		
+		if (batch > 1) { grads.scale(1.0/batch); }
+		grads.clip(-5, 5); // mitigate exploding gradients
 		
-		return new Loss(loss, dWxh, dWhh, dWhy, dbh, dby, toRaw(hs.get(inputs.length-1)));
+		double[] state = new double[batch*hiddenSize];
+		Matrix.copy(hs[length], new Tensor(state, batch, hiddenSize, hiddenSize, 0));
+		return new Loss(loss/batch, grads, state);
 	}
 	
 	public void train(int maxstep) {
-		int n = 0; int p = 0;
+		train(maxstep, 1, false);
+	}
+	
+	public void train(int maxstep, int threads, boolean hogwild) {
+		train(maxstep, threads, hogwild, null);
+	}
+	
+	// Data-parallel training. Each of <threads> workers runs loss() on its own
+	// shard of the corpus with its own hidden state and buffers. Normally the
+	// workers' gradients are averaged into a single update per step; with
+	// <hogwild> every worker instead applies its own updates to the shared
+	// weights without any locking, and a step is one worker's minibatch.
+	// If <checkpoints> is given, snapshots are handed to it on its cadence
+	// and written in the background while training carries on.
+	public void train(int maxstep, int threads, boolean hogwild, CheckpointWriter checkpoints) {
+		if (threads < 1) throw new IllegalArgumentException("Thread count must be positive");
+		if (corpus == null) throw new IllegalStateException("Model was loaded for inference only");
+		
+		// Each stream walks its own contiguous segment of the data
+		int streams = threads*batchSize;
+		int segment = (dataSize - 1) / streams;
+		if (segment < seqLength) throw new IllegalArgumentException("Batch size too large for the input");
+		
+		// Pick up where the last run (or loaded checkpoint) stopped if the stream layout is unchanged
+		boolean resume = cursors != null && cursors.length == streams && hprev.length == streams*hiddenSize;
+		if (step > 0) {
+			System.out.println(resume ? "Resuming from iter " + step : "Resuming from iter " + step + " with fresh data cursors");
+		}
+		Shard[] shards = new Shard[threads];
+		for (int w = 0; w < threads; w++) { shards[w] = new Shard(w*batchSize, segment, streams, resume); }
 		
 		// Loss at iteration 0
-		double smoothLoss = -1 * Math.log(1.0/vocabSize) * seqLength;
+		if (step == 0) { smoothLoss = -1 * Math.log(1.0/vocabSize) * seqLength; }
+		reportTime = System.nanoTime();
 		
-		while (true) { 
-			
-			if ((p + seqLength + 1) >= data.length() || n == 0) {
-				hprev = new double[hiddenSize]; // reset RNN memory...
-				p = 0; // go from start of data
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		try {
+			if (hogwild) {
+				trainHogwild(maxstep, shards, pool, checkpoints);
+			} else {
+				trainSynchronous(maxstep, shards, pool, checkpoints);
 			}
-			
-			int[] inputs = new int[seqLength];
-			for (int a = 0; a < seqLength; a++) {
-				String ch = Character.toString(data.charAt(p+a));
-				inputs[a] = charToIndex.get(ch);		
+		} finally {
+			if (pool != null) { pool.shutdown(); }
+		}
+		collectState(shards);
+	}
+	
+	// Gather the shards' cursors and hidden states into the model, for checkpoints and later runs
+	private synchronized void collectState(Shard[] shards) {
+		int streams = shards.length*batchSize;
+		if (cursors == null || cursors.length != streams) { cursors = new int[streams]; }
+		if (hprev.length != streams*hiddenSize) { hprev = new double[streams*hiddenSize]; }
+		for (int w = 0; w < shards.length; w++) {
+			System.arraycopy(shards[w].p, 0, cursors, w*batchSize, batchSize);
+			System.arraycopy(shards[w].hprev, 0, hprev, w*batchSize*hiddenSize, batchSize*hiddenSize);
+		}
+	}
+	
+	private void trainSynchronous(int maxstep, Shard[] shards, ForkJoinPool pool, CheckpointWriter checkpoints) {
+		List<Callable<Loss>> tasks = new ArrayList<Callable<Loss>>(Arrays.asList(shards));
+		Gradients total = shards.length > 1 ? new Gradients(hiddenSize, vocabSize, float32) : null;
+		
+		for (int n = step; n <= maxstep; n++) {
+			// Sample from the model now and then
+			if (n % 100 == 0) { printSample(shards[0]); }
+			
+			// Forward seqLength characters thru the net on every shard and fetch gradients
+			Gradients grads;
+			double loss = 0;
+			if (pool == null) {
+				Loss result = shards[0].call();
+				grads = result.grads;
+				loss = result.loss;
+			} else {
+				total.zero();
+				for (Future<Loss> future : pool.invokeAll(tasks)) {
+					Loss result = join(future);
+					total.add(result.grads);
+					loss += result.loss;
+				}
+				total.scale(1.0/shards.length);
+				loss /= shards.length;
+				grads = total;
 			}
 			
-			int[] targets = new int[seqLength];
-			for (int b = 0; b < seqLength; b++) {
-				String ch = Character.toString(data.charAt(p+b+1));
-				targets[b] = charToIndex.get(ch);
+			update(grads, n);
+			record(n, loss, shards.length);
+			if (checkpoints != null && checkpoints.due(n)) { checkpoint(checkpoints, n, shards); }
+		}
+	}
+	
+	private void trainHogwild(final int maxstep, final Shard[] shards, ForkJoinPool pool, final CheckpointWriter checkpoints) {
+		final AtomicInteger counter = new AtomicInteger(step);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Shard shard : shards) {
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					int n;
+					while ((n = counter.getAndIncrement()) <= maxstep) {
+						if (n % 100 == 0) { printSample(shard); }
+						Loss result = shard.call();
+						update(result.grads, n); // races with the other shards by design
+						record(n, result.loss, 1);
+						// other shards keep updating while this copies, so the snapshot is not a single instant
+						if (checkpoints != null && checkpoints.due(n)) { checkpoint(checkpoints, n, shards); }
+					}
+					return null;
+				}
+			});
+		}
+		if (pool == null) {
+			try { tasks.get(0).call(); } catch (Exception e) { throw new RuntimeException(e); }
+		} else {
+			for (Future<Void> future : pool.invokeAll(tasks)) { join(future); }
+		}
+	}
+	
+	// Perform parameter update with Adagrad
+	private void update(Gradients grads, int n) {
+		double reg_t = global_reg / Math.sqrt(n+100);
+		
+		if (float32) {
+			optimizer.update(Wxh.fdata, grads.dWxh.fdata, mWxh.fdata, reg_t);
+			optimizer.update(Whh.fdata, grads.dWhh.fdata, mWhh.fdata, reg_t);
+			optimizer.update(Why.fdata, grads.dWhy.fdata, mWhy.fdata, reg_t);
+		} else {
+			optimizer.update(Wxh.data, grads.dWxh.data, mWxh.data, reg_t);
+			optimizer.update(Whh.data, grads.dWhh.data, mWhh.data, reg_t);
+			optimizer.update(Why.data, grads.dWhy.data, mWhy.data, reg_t);
+		}
+		optimizer.update(bh, grads.dbh, mbh, reg_t);
+		optimizer.update(by, grads.dby, mby, 0.0); // no weight decay on the output bias
+	}
+	
+	// Track the smoothed loss and report it with throughput every 100 steps
+	private synchronized void record(int n, double loss, int shardsPerStep) {
+		smoothLoss = (smoothLoss * 0.999) + (loss * 0.001);
+		step = Math.max(step, n+1);
+		reportChars += (long) seqLength * batchSize * shardsPerStep;
+		if (n % 100 == 0) {
+			long now = System.nanoTime();
+			double charsPerSec = reportChars / ((now - reportTime) / 1e9);
+			System.out.println("iter " + n + ", loss: " + smoothLoss + ", chars/sec: " + Math.round(charsPerSec));
+			reportTime = now;
+			reportChars = 0;
+		}
+	}
+	
+	private void printSample(Shard shard) {
+		int[] sampleIndices = sample(Arrays.copyOf(shard.hprev, hiddenSize), shard.firstInput(), 200);
+		String text = indicesToChars(sampleIndices);
+		System.out.println("----\n" + text + "\n----");
+	}
+	
+	private static <T> T join(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	// One training worker: batchSize streams over its own part of the data,
+	// with private hidden state, activations and gradient buffers.
+	private class Shard implements Callable<Loss> {
+		private int[] p, start, end;
+		private double[] hprev;
+		private int[] inputs, targets;
+		private Workspace ws;
+		private Gradients grads;
+		
+		// With <resume>, carry on from the model's saved cursors and hidden state
+		Shard(int firstStream, int segment, int streams, boolean resume) {
+			p = new int[batchSize];
+			start = new int[batchSize];
+			end = new int[batchSize];
+			hprev = new double[batchSize*hiddenSize];
+			for (int b = 0; b < batchSize; b++) {
+				int s = firstStream + b;
+				start[b] = s*segment;
+				end[b] = (s == streams-1) ? dataSize - 1 : start[b] + segment;
+				p[b] = start[b];
+				if (resume && cursors[s] >= start[b] && cursors[s] <= end[b]) {
+					p[b] = cursors[s];
+					System.arraycopy(ChaRNN.this.hprev, s*hiddenSize, hprev, b*hiddenSize, hiddenSize);
+				}
+			}
+			inputs = new int[seqLength*batchSize];
+			targets = new int[seqLength*batchSize];
+			ws = new Workspace(seqLength, batchSize, hiddenSize, vocabSize, float32);
+			grads = new Gradients(hiddenSize, vocabSize, float32);
+		}
+		
+		int firstInput() {
+			return corpus.get(p[0]);
+		}
+		
+		// Run one minibatch through loss() and advance the cursors
+		public Loss call() {
+			for (int b = 0; b < batchSize; b++) {
+				if ((p[b] + seqLength) >= end[b]) {
+					Arrays.fill(hprev, b*hiddenSize, (b+1)*hiddenSize, 0.0); // reset this stream's memory...
+					p[b] = start[b]; // go from start of its segment
+				}
 			}
 			
-			// Sample from the model now and then
-			if (n % 100 == 0) {
-				int[] sampleIndices = sample(hprev, inputs[0], 200);
-				String text = indicesToChars(sampleIndices);
-				System.out.println("----\n" + text + "\n----");
+			for (int a = 0; a < seqLength; a++) {
+				for (int b = 0; b < batchSize; b++) {
+					inputs[a*batchSize + b] = corpus.get(p[b]+a);
+					targets[a*batchSize + b] = corpus.get(p[b]+a+1);
+				}
 			}
 			
-			// Forward seqLength characters thru the net and fetch gradient
-			Loss loss = loss(inputs, targets, hprev);
+			Loss loss = loss(inputs, targets, new Tensor(hprev, batchSize, hiddenSize, hiddenSize, 0), ws, grads);
 			hprev = loss.state;
-						
-			double reg_t = global_reg / Math.sqrt(n+100);
-			
-			// Perform parameter update with Adagrad
-			mWxh = Matrix.add(mWxh, Matrix.elementMult(loss.dWxh, loss.dWxh));
-			double[][] adagrad = Matrix.multiply(loss.dWxh, (-1.0*learningRate));
-			adagrad = Matrix.divide(adagrad, Matrix.sqrt(Matrix.add(mWxh, 0.00000001)));			
-			adagrad = Matrix.add(adagrad, Matrix.multiply(Wxh, reg_t));
-			Wxh = Matrix.add(Wxh, adagrad);
 			
-			mWhh = Matrix.add(mWhh, Matrix.elementMult(loss.dWhh, loss.dWhh));
-			adagrad = Matrix.multiply(loss.dWhh, (-1.0*learningRate));
-			adagrad = Matrix.divide(adagrad, Matrix.sqrt(Matrix.add(mWhh, 0.00000001)));
-			adagrad = Matrix.add(adagrad, Matrix.multiply(Whh, reg_t));
-			Whh = Matrix.add(Whh, adagrad);
-			
-			mWhy = Matrix.add(mWhy, Matrix.elementMult(loss.dWhy, loss.dWhy));
-			adagrad = Matrix.multiply(loss.dWhy, (-1.0*learningRate));
-			adagrad = Matrix.divide(adagrad, Matrix.sqrt(Matrix.add(mWhy, 0.00000001)));
-			adagrad = Matrix.add(adagrad, Matrix.multiply(Why, reg_t));
-			Why = Matrix.add(Why, adagrad);
-			
-			mbh = Matrix.add(mbh, Matrix.elementMult(loss.dbh, loss.dbh));
-			double[] adagrad2 = Matrix.multiply(loss.dbh, (-1.0*learningRate));
-			adagrad2 = Matrix.divide(adagrad2, Matrix.sqrt(Matrix.add(mbh, 0.00000001)));
-			adagrad2 = Matrix.add(adagrad2, Matrix.multiply(bh, reg_t));
-			bh = Matrix.add(bh, adagrad2);
-			
-			mby = Matrix.add(mby, Matrix.elementMult(loss.dby, loss.dby));
-			adagrad2 = Matrix.multiply(loss.dby, (-1.0*learningRate));
-			//adagrad2 = Matrix.add(adagrad2, Matrix.multiply(by, global_reg));			
-			adagrad2 = Matrix.divide(adagrad2, Matrix.sqrt(Matrix.add(mby, 0.00000001)));
-
-			by = Matrix.add(by, adagrad2);
-			
-			smoothLoss = (smoothLoss * 0.999) + (loss.loss * 0.001);
-			if (n % 100 == 0) { System.out.println("iter " + n + ", loss: " + smoothLoss); }
-
-			p += seqLength;
-			n++;
-			
-			if(n>maxstep) break;
+			for (int b = 0; b < batchSize; b++) { p[b] += seqLength; }
+			return loss;
 		}
 	}
 	
-	
 	public int[] sample(double[] h, int seedIndex, int n) {
-		double[] state = h.clone();
-		double[] x = new double[vocabSize];
-		x[seedIndex] = 1;
+		Generator generator = generator();
+		generator.setState(h);
+		int x = seedIndex;
 		int[] indices = new int[n];
 		for (int t = 0; t < n; t++) {
-			double[] Wxh_dot_x = Matrix.multiply(Wxh, x);
-			double[] Whh_dot_h = Matrix.multiply(Whh, state);
-			
-			state = Matrix.add(Matrix.add(Wxh_dot_x, Whh_dot_h), bh);
-			
-			state = Matrix.tanh(state);
-			
-			double[] y = Matrix.add(Matrix.multiply(Why, state), by);
-			double[] p = Matrix.softmax(y);
-			
-			int index = Matrix.randomChoice(vocabSize, p);
-			x = new double[vocabSize];
-			x[index] = 1;
-			indices[t] = index;
+			x = generator.sample(x);
+			indices[t] = x;
 		}
-				
 		return indices;
 	}
 	
 	public int[] forward(double[] h, int[] seedIndexs, int n) {
-		double[] state = h.clone();
-		double[] x = new double[vocabSize];
-		int[] indices = new int[n+seedIndexs.length];
+		Generator generator = generator();
+		generator.setState(h);
+		int[] indices = Arrays.copyOf(seedIndexs, n+seedIndexs.length);
 		
-		int seedIndex = seedIndexs[0];
-		x[seedIndex] = 1;
+		int x = generator.prefillSeeds(seedIndexs);
 		
-		for (int t = 0; t < n+seedIndexs.length; t++) {
-			double[] Wxh_dot_x = Matrix.multiply(Wxh, x);
-			double[] Whh_dot_h = Matrix.multiply(Whh, state);
-			
-			state = Matrix.add(Matrix.add(Wxh_dot_x, Whh_dot_h), bh);
-			state = Matrix.tanh(state);
-			
-			double[] y = Matrix.add(Matrix.multiply(Why, state), by);
-			double[] p = Matrix.softmax(y);
-			
-			int index = Matrix.randomChoice(vocabSize, p);
-			x = new double[vocabSize];
-			
-			if(t<seedIndexs.length) {
-				indices[t] = seedIndexs[t];
-				x[seedIndexs[t]] = 1;		
-			} else {
-				indices[t] = index;
-				x[index] = 1;
-			}
+		for (int t = seedIndexs.length; t < indices.length; t++) {
+			x = generator.sample(x);
+			indices[t] = x;
 		}
 				
 		return indices;
 	}
 	
+	// A new generation session over this model's live weights, starting from the zero state
+	public Generator generator() {
+		return live().generator();
+	}
+	
+	// A frozen copy of the trained parameters, safe to share between any
+	// number of concurrent sessions while this model keeps training
+	public Weights weights() {
+		return new Weights(Wxh.copy(), Whh.copy(), Why.copy(), bh.clone(), by.clone(), vocab);
+	}
+	
+	// A view of the live parameters, without copying; training updates show through
+	private Weights live() {
+		return new Weights(Wxh, Whh, Why, bh, by, vocab);
+	}
+	
+	// The seeds followed by <n> generated characters
 	public String forward(String seeds, int n) {
-		String str = "";
-		
-		double[] h = new double[hiddenSize]; 
-		
-		int [] seedIndexs = stringToIndices(seeds);
-		int[] result = forward(h, seedIndexs, n);
-		str = indicesToChars(result);
-		return str;
+		return live().forward(seeds, n);
+	}
+	
+	// See Weights.generate(String, int, GenerationListener)
+	public int generate(String seeds, int n, GenerationListener listener) {
+		return live().generate(seeds, n, listener);
+	}
+	
+	// See Weights.generate(String, int)
+	public Iterator<String> generate(String seeds, int n) {
+		return live().generate(seeds, n);
+	}
+	
+	// Per-character perplexity on a held-out text file; see Weights.perplexity()
+	public double perplexity(String path) throws IOException {
+		return live().perplexity(path);
+	}
+	
+	// An int8 copy of the model for inference; see QuantizedModel
+	public QuantizedModel quantize() {
+		return new QuantizedModel(chars, QuantizedTensor.quantize(Wxh), QuantizedTensor.quantize(Whh), QuantizedTensor.quantize(Why), bh, by);
 	}
 	
 	public void save() throws IOException {
+		String timestamp = new Date().toString();
+		save("checkpoint_" + timestamp + ".bin");
+	}
+	
+	// Write a binary checkpoint; see Checkpoint for the layout
+	public void save(String path) throws IOException {
+		save(path, false);
+	}
+	
+	// With <float32> the weights are stored at single precision, halving the file
+	public void save(String path, boolean float32) throws IOException {
 		System.out.println("Saving checkpoint...");
+		toCheckpoint().write(path, float32);
+		System.out.println("Save complete.");
+	}
+	
+	// The model's checkpoint contents, sharing its live arrays
+	private Checkpoint toCheckpoint() {
+		Checkpoint c = new Checkpoint();
+		c.inputPath = inputPath;
+		c.vocabSize = vocabSize;
+		c.hiddenSize = hiddenSize;
+		c.seqLength = seqLength;
+		c.batchSize = batchSize;
+		c.learningRate = learningRate;
+		c.float32 = float32;
+		c.chars = chars;
 		
+		c.Wxh = Wxh;
+		c.Whh = Whh;
+		c.Why = Why;
+		c.bh = bh;
+		c.by = by;
+		
+		c.mWxh = mWxh;
+		c.mWhh = mWhh;
+		c.mWhy = mWhy;
+		c.mbh = mbh;
+		c.mby = mby;
+		c.step = step;
+		c.smoothLoss = smoothLoss;
+		c.cursors = cursors;
+		c.hprev = cursors != null ? hprev : null;
+		return c;
+	}
+	
+	// Copy the current state into a free snapshot buffer and hand it to the
+	// background writer; skipped if the writer is still busy with both buffers
+	private synchronized void checkpoint(CheckpointWriter checkpoints, int n, Shard[] shards) {
+		Checkpoint snapshot = checkpoints.acquire();
+		if (snapshot == null) {
+			System.out.println("Checkpoint at iter " + n + " skipped, writer busy");
+			return;
+		}
+		collectState(shards);
+		snapshot.copyFrom(toCheckpoint());
+		checkpoints.submit(snapshot, n);
+	}
+	
+	// The legacy JSON checkpoint, for interchange with older versions
+	public void exportJson(String path) throws IOException {
 		Gson gson = new Gson();
 		JSONObject obj = new JSONObject();
 		obj.put("inputPath", inputPath);
@@ -392,78 +680,41 @@ public class ChaRNN {
 		obj.put("hiddenSize", hiddenSize);
 		obj.put("seqLength", seqLength);
 		obj.put("learningRate", learningRate);
+		obj.put("batchSize", batchSize);
+		obj.put("float32", float32);
 		obj.put("chars", gson.toJson(chars));
-		obj.put("Wxh", gson.toJson(Wxh));
-		obj.put("Whh", gson.toJson(Whh));
-		obj.put("Why", gson.toJson(Why));
+		obj.put("Wxh", gson.toJson(Wxh.toArray()));
+		obj.put("Whh", gson.toJson(Whh.toArray()));
+		obj.put("Why", gson.toJson(Why.toArray()));
 		obj.put("bh", gson.toJson(bh));
 		obj.put("by", gson.toJson(by));
-		obj.put("hprev", gson.toJson(by));
-		
-		System.out.println(Wxh[0][0]);
+		obj.put("hprev", gson.toJson(hprev));
 		
-		String timestamp = new Date().toString();
-		try (FileWriter writer = new FileWriter("checkpoint_" + timestamp + ".txt")) {
+		try (FileWriter writer = new FileWriter(path)) {
 			writer.write(obj.toJSONString());
-			System.out.println("Save complete.");
-		} catch (IOException e) {
-			throw e;
 		}
 	}
 	
 	//--- Helper functions ---//
-	private String readFile(String path, Charset encoding) throws IOException {
-		byte[] encoded = Files.readAllBytes(Paths.get(path));
-		return new String(encoded, encoding);
-	}
-	
-	private ArrayList<String> listFromSetFromString(String string) {
-		Set<String> set = new HashSet<String>(Arrays.asList(string.split("")));
-		set.remove("");
-		ArrayList<String> list = new ArrayList<String>();
-		list.addAll(set);
-		return list;
-	}
-	
 	private String indicesToChars(int[] indices) {
-		String string = "";
-		for (int index : indices) { string += indexToChar.get(index); }
-		return string;
-	}
-	
-	private int[] stringToIndices(String str) {
-		int[] indices = new int[str.length()];
-		for(int n = 0; n<str.length(); n++) {
-			String c = Character.toString(str.charAt(n));
-			Integer i = charToIndex.get(c);
-			if(i!=null) indices[n] = i.valueOf(i);
-		}
-		return indices;
-	}
-	
-	private Double[] toObject(double[] array) {
-		Double[] result = new Double[array.length];
-		for (int i = 0; i < array.length; i++) {
-			result[i] = new Double(array[i]);
-		}
-		return result;
+		return vocab.decode(indices);
 	}
 	
-	private double[] toRaw(Double[] array) {
-		double[] result = new double[array.length];
-		for (int i = 0; i < array.length; i++) {
-			result[i] = array[i].doubleValue();
+	// reuse the activation buffers between steps, growing them if a longer sequence comes in
+	private Workspace workspace(int length, int batch) {
+		if (workspace == null || workspace.length() < length || workspace.batch() != batch) {
+			workspace = new Workspace(Math.max(length, seqLength), batch, hiddenSize, vocabSize, float32);
 		}
-		return result;
+		return workspace;
 	}
 	
 	//--- Debug utilities ---//
-	public static void print(double[][] matrix) {
+	public static void print(Tensor matrix) {
 		String string = "[ ";
-		for (double[] r : matrix) {
+		for (int r = 0; r < matrix.rows; r++) {
 			string += "[ ";
-			for (double i : r) {
-				string += i + " ";
+			for (int c = 0; c < matrix.cols; c++) {
+				string += matrix.get(r, c) + " ";
 			}
 			string += "]";
 		}
@@ -0,0 +1,422 @@
+package com.mran.charnn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/******************************************************************************
+ *  The binary checkpoint format.
+ *
+ *  A checkpoint is a little-endian file: the magic number and format
+ *  version, then a header of hyperparameters and vocabulary, then the raw
+ *  weight blocks. Each block is its shape, an element width (8 for
+ *  float64, 4 for float32) and the elements in row-major order, padded so
+ *  the elements start on an 8-byte boundary. Since version 2 the weights
+ *  are followed by the training state needed to resume exactly: the
+ *  Adagrad memory (at the model's precision), step counter, smoothed
+ *  loss, and each stream's data cursor and hidden state. Since version 3
+ *  the header records whether the model computes in float32; such a
+ *  model's weights and Adagrad memory are always stored as float32
+ *  blocks and are read back as float32 tensors.
+ *
+ *  Reading maps the file with a MappedByteBuffer, so the weights are bulk
+ *  copied straight out of the page cache with no parsing.
+ *
+ *  A Checkpoint object is the contents of one such file. It either shares
+ *  a live model's arrays (for a blocking save) or owns copies of them (a
+ *  snapshot that can be written in the background).
+ *
+ ******************************************************************************/
+
+public class Checkpoint {
+	public static final int MAGIC = 0x4E4E5243; // "CRNN" as little-endian bytes
+	public static final int VERSION = 3;
+
+	// Hyperparameters and vocabulary
+	public String inputPath;
+	public int vocabSize;
+	public int hiddenSize;
+	public int seqLength;
+	public int batchSize;
+	public double learningRate;
+	public boolean float32; // the model's compute precision, not just the storage width
+	public List<String> chars;
+
+	// Weights & biases
+	public Tensor Wxh, Whh, Why;
+	public double[] bh, by;
+
+	// Training state; mWxh is null if the checkpoint predates it
+	public Tensor mWxh, mWhh, mWhy;
+	public double[] mbh, mby;
+	public int step;
+	public double smoothLoss;
+	public int[] cursors;   // data position of each training stream, or null
+	public double[] hprev;  // hidden state of each training stream, hiddenSize apiece
+
+	public void write(String path, boolean float32) throws IOException {
+		try (Writer out = new Writer(path)) {
+			out.putString(inputPath);
+			out.putInt(vocabSize);
+			out.putInt(hiddenSize);
+			out.putInt(seqLength);
+			out.putInt(batchSize);
+			out.putDouble(learningRate);
+			out.putInt(this.float32 ? 1 : 0);
+			for (String c : chars) { out.putString(c); }
+
+			out.putTensor(Wxh, float32);
+			out.putTensor(Whh, float32);
+			out.putTensor(Why, float32);
+			out.putVector(bh, float32);
+			out.putVector(by, float32);
+
+			out.putInt(mWxh != null ? 1 : 0);
+			if (mWxh != null) {
+				out.putTensor(mWxh, false);
+				out.putTensor(mWhh, false);
+				out.putTensor(mWhy, false);
+				out.putVector(mbh, false);
+				out.putVector(mby, false);
+				out.putInt(step);
+				out.putDouble(smoothLoss);
+				int streams = cursors != null ? cursors.length : 0;
+				out.putInt(streams);
+				for (int i = 0; i < streams; i++) { out.putInt(cursors[i]); }
+				out.putVector(streams > 0 ? hprev : new double[0], false);
+			}
+		}
+	}
+
+	public static Checkpoint read(String path) throws IOException {
+		Reader in = new Reader(path);
+		Checkpoint c = new Checkpoint();
+		c.inputPath = in.getString();
+		c.vocabSize = in.getInt();
+		c.hiddenSize = in.getInt();
+		c.seqLength = in.getInt();
+		c.batchSize = in.getInt();
+		c.learningRate = in.getDouble();
+		c.float32 = in.version() >= 3 && in.getInt() == 1;
+
+		c.chars = new ArrayList<String>(c.vocabSize);
+		for (int i = 0; i < c.vocabSize; i++) { c.chars.add(in.getString()); }
+
+		c.Wxh = in.getTensor(c.float32);
+		c.Whh = in.getTensor(c.float32);
+		c.Why = in.getTensor(c.float32);
+		c.bh = in.getVector();
+		c.by = in.getVector();
+		if (c.Wxh.rows != c.hiddenSize || c.Wxh.cols != c.vocabSize || c.Whh.rows != c.hiddenSize || c.Whh.cols != c.hiddenSize
+				|| c.Why.rows != c.vocabSize || c.Why.cols != c.hiddenSize || c.bh.length != c.hiddenSize || c.by.length != c.vocabSize) {
+			throw new IOException("Checkpoint weights do not match its header: " + path);
+		}
+
+		if (in.version() >= 2 && in.getInt() == 1) {
+			c.mWxh = in.getTensor(c.float32);
+			c.mWhh = in.getTensor(c.float32);
+			c.mWhy = in.getTensor(c.float32);
+			c.mbh = in.getVector();
+			c.mby = in.getVector();
+			c.step = in.getInt();
+			c.smoothLoss = in.getDouble();
+			int streams = in.getInt();
+			c.cursors = streams > 0 ? new int[streams] : null;
+			for (int i = 0; i < streams; i++) { c.cursors[i] = in.getInt(); }
+			double[] hprev = in.getVector();
+			c.hprev = streams > 0 ? hprev : null;
+			if (c.mWxh.rows != c.Wxh.rows || c.mWxh.cols != c.Wxh.cols || c.mWhh.rows != c.Whh.rows || c.mWhh.cols != c.Whh.cols
+					|| c.mWhy.rows != c.Why.rows || c.mWhy.cols != c.Why.cols || c.mbh.length != c.bh.length || c.mby.length != c.by.length
+					|| (c.hprev != null && c.hprev.length != streams*c.hiddenSize)) {
+				throw new IOException("Checkpoint training state does not match its header: " + path);
+			}
+		}
+		return c;
+	}
+
+	// Deep-copy <live> into this checkpoint, reusing its buffers when the shapes still match
+	public void copyFrom(Checkpoint live) {
+		inputPath = live.inputPath;
+		vocabSize = live.vocabSize;
+		hiddenSize = live.hiddenSize;
+		seqLength = live.seqLength;
+		batchSize = live.batchSize;
+		learningRate = live.learningRate;
+		float32 = live.float32;
+		chars = new ArrayList<String>(live.chars);
+
+		Wxh = copy(live.Wxh, Wxh);
+		Whh = copy(live.Whh, Whh);
+		Why = copy(live.Why, Why);
+		bh = copy(live.bh, bh);
+		by = copy(live.by, by);
+
+		if (live.mWxh != null) {
+			mWxh = copy(live.mWxh, mWxh);
+			mWhh = copy(live.mWhh, mWhh);
+			mWhy = copy(live.mWhy, mWhy);
+			mbh = copy(live.mbh, mbh);
+			mby = copy(live.mby, mby);
+		} else {
+			mWxh = mWhh = mWhy = null;
+			mbh = mby = null;
+		}
+		step = live.step;
+		smoothLoss = live.smoothLoss;
+		cursors = live.cursors != null ? live.cursors.clone() : null;
+		hprev = live.hprev != null ? copy(live.hprev, hprev) : null;
+	}
+
+	private static Tensor copy(Tensor from, Tensor into) {
+		if (into == null || into.rows != from.rows || into.cols != from.cols || into.isFloat() != from.isFloat()
+				|| !into.isContiguous() || into.offset != 0) {
+			return from.copy();
+		}
+		Matrix.copy(from, into);
+		return into;
+	}
+
+	private static double[] copy(double[] from, double[] into) {
+		if (into == null || into.length != from.length) { return from.clone(); }
+		System.arraycopy(from, 0, into, 0, from.length);
+		return into;
+	}
+
+	// true if <path> starts with the binary checkpoint magic number
+	public static boolean isBinary(String path) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			ByteBuffer head = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (head.hasRemaining() && channel.read(head) >= 0) { }
+			return !head.hasRemaining() && head.getInt(0) == MAGIC;
+		}
+	}
+
+	public static class Writer implements Closeable {
+		private static final int BUFFER_SIZE = 1 << 16;
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private long position = 0;
+
+		public Writer(String path) throws IOException {
+			this(path, MAGIC, VERSION);
+		}
+
+		// a file of another format built from the same blocks
+		public Writer(String path, int magic, int version) throws IOException {
+			channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			putInt(magic);
+			putInt(version);
+		}
+
+		public void putInt(int value) throws IOException {
+			ensure(4);
+			buffer.putInt(value);
+			position += 4;
+		}
+
+		public void putDouble(double value) throws IOException {
+			ensure(8);
+			buffer.putDouble(value);
+			position += 8;
+		}
+
+		public void putString(String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			for (int i = 0; i < bytes.length; i += BUFFER_SIZE) {
+				int n = Math.min(BUFFER_SIZE, bytes.length - i);
+				ensure(n);
+				buffer.put(bytes, i, n);
+				position += n;
+			}
+		}
+
+		// float32 tensors are always written as float32 blocks
+		public void putTensor(Tensor t, boolean float32) throws IOException {
+			float32 |= t.isFloat();
+			putInt(t.rows);
+			putInt(t.cols);
+			putInt(float32 ? 4 : 8);
+			align();
+			for (int i = 0; i < t.rows; i++) {
+				if (t.isFloat()) {
+					putElements(t.fdata, t.offset + i*t.stride, t.cols);
+				} else {
+					putElements(t.data, t.offset + i*t.stride, t.cols, float32);
+				}
+			}
+		}
+
+		// a length-prefixed block of raw bytes, padded like the other blocks
+		public void putBytes(byte[] bytes) throws IOException {
+			putInt(bytes.length);
+			align();
+			for (int i = 0; i < bytes.length; i += BUFFER_SIZE) {
+				int n = Math.min(BUFFER_SIZE, bytes.length - i);
+				ensure(n);
+				buffer.put(bytes, i, n);
+				position += n;
+			}
+		}
+
+		public void putVector(double[] v, boolean float32) throws IOException {
+			putTensor(new Tensor(v, 1, v.length, v.length, 0), float32);
+		}
+
+		private void putElements(double[] data, int from, int count, boolean float32) throws IOException {
+			int width = float32 ? 4 : 8;
+			while (count > 0) {
+				ensure(width);
+				int n = Math.min(count, buffer.remaining() / width);
+				if (float32) {
+					FloatBuffer view = buffer.asFloatBuffer();
+					for (int i = 0; i < n; i++) { view.put((float) data[from + i]); }
+				} else {
+					buffer.asDoubleBuffer().put(data, from, n);
+				}
+				buffer.position(buffer.position() + n*width);
+				position += (long) n*width;
+				from += n;
+				count -= n;
+			}
+		}
+
+		private void putElements(float[] data, int from, int count) throws IOException {
+			while (count > 0) {
+				ensure(4);
+				int n = Math.min(count, buffer.remaining() / 4);
+				buffer.asFloatBuffer().put(data, from, n);
+				buffer.position(buffer.position() + n*4);
+				position += (long) n*4;
+				from += n;
+				count -= n;
+			}
+		}
+
+		// pad with zeros up to the next multiple of 8 bytes
+		private void align() throws IOException {
+			while (position % 8 != 0) {
+				ensure(1);
+				buffer.put((byte) 0);
+				position++;
+			}
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) { flush(); }
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) { channel.write(buffer); }
+			buffer.clear();
+		}
+
+		// flush and force the contents to disk
+		public void close() throws IOException {
+			try {
+				flush();
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	public static class Reader {
+		private final MappedByteBuffer buffer;
+		private final int version;
+
+		public Reader(String path) throws IOException {
+			this(path, MAGIC, VERSION);
+		}
+
+		// a file of another format built from the same blocks, up to version <maxVersion>
+		public Reader(String path, int magic, int maxVersion) throws IOException {
+			try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+				if (channel.size() > Integer.MAX_VALUE) throw new IOException("Checkpoint too large to map: " + path);
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.remaining() < 8 || buffer.getInt() != magic) throw new IOException("Not a binary checkpoint: " + path);
+			version = buffer.getInt();
+			if (version < 1 || version > maxVersion) throw new IOException("Unsupported checkpoint version " + version + ": " + path);
+		}
+
+		public int version() {
+			return version;
+		}
+
+		public boolean hasRemaining() {
+			return buffer.hasRemaining();
+		}
+
+		public int getInt() {
+			return buffer.getInt();
+		}
+
+		public double getDouble() {
+			return buffer.getDouble();
+		}
+
+		public String getString() {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		public Tensor getTensor() throws IOException {
+			return getTensor(false);
+		}
+
+		// the next block as a tensor of the given precision, whatever width it was stored at
+		public Tensor getTensor(boolean float32) throws IOException {
+			int rows = buffer.getInt();
+			int cols = buffer.getInt();
+			int width = buffer.getInt();
+			if (rows < 0 || cols < 0 || (width != 4 && width != 8)) throw new IOException("Corrupt checkpoint block");
+			while (buffer.position() % 8 != 0) { buffer.get(); }
+
+			Tensor t = new Tensor(rows, cols, float32);
+			int count = rows*cols;
+			if (width == 8 && !float32) {
+				buffer.asDoubleBuffer().get(t.data, 0, count);
+			} else if (width == 4 && float32) {
+				buffer.asFloatBuffer().get(t.fdata, 0, count);
+			} else if (width == 8) {
+				DoubleBuffer view = buffer.asDoubleBuffer();
+				for (int i = 0; i < count; i++) { t.fdata[i] = (float) view.get(); }
+			} else {
+				FloatBuffer view = buffer.asFloatBuffer();
+				for (int i = 0; i < count; i++) { t.data[i] = view.get(); }
+			}
+			buffer.position(buffer.position() + count*width);
+			return t;
+		}
+
+		public byte[] getBytes() throws IOException {
+			int length = buffer.getInt();
+			if (length < 0) throw new IOException("Corrupt checkpoint block");
+			while (buffer.position() % 8 != 0) { buffer.get(); }
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			return bytes;
+		}
+
+		public double[] getVector() throws IOException {
+			return getTensor().data;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.mran.charnn;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/******************************************************************************
+ *  Writes training checkpoints on a background thread.
+ *
+ *  The trainer takes a free snapshot buffer with acquire(), copies the
+ *  model into it and passes it to submit(); the write happens on the
+ *  writer's own thread. There are two buffers, so one snapshot can be
+ *  filled while the other is on its way to disk. If both are busy the
+ *  checkpoint is skipped rather than stalling training.
+ *
+ *  Each file is written under a temporary name and renamed into place, so
+ *  a crash never leaves a half-written checkpoint behind, and only the
+ *  newest <keep> checkpoints are kept. Checkpoints already in the
+ *  directory from an earlier run count towards <keep>, and temporary
+ *  files a crash left mid-write are removed on start.
+ *
+ ******************************************************************************/
+
+public class CheckpointWriter implements Closeable {
+	private final File directory;
+	private final String prefix;
+	private final int everySteps;
+	private final long everyNanos;
+	private final int keep;
+	private final boolean float32;
+	
+	private final BlockingQueue<Checkpoint> free = new ArrayBlockingQueue<Checkpoint>(2);
+	private final ArrayDeque<Path> written = new ArrayDeque<Path>();
+	private final ExecutorService executor;
+	private long lastTime = System.nanoTime();
+	
+	// Checkpoint every <everySteps> steps and/or every <everySeconds> seconds
+	// (0 disables either), keeping the newest <keep> files in <directory>.
+	public CheckpointWriter(String directory, String prefix, int everySteps, long everySeconds, int keep) {
+		this(directory, prefix, everySteps, everySeconds, keep, false);
+	}
+	
+	public CheckpointWriter(String directory, String prefix, int everySteps, long everySeconds, int keep, boolean float32) {
+		if (everySteps < 0 || everySeconds < 0 || keep < 1) throw new IllegalArgumentException("Invalid checkpoint cadence");
+		this.directory = new File(directory);
+		this.prefix = prefix;
+		this.everySteps = everySteps;
+		this.everyNanos = TimeUnit.SECONDS.toNanos(everySeconds);
+		this.keep = keep;
+		this.float32 = float32;
+		this.directory.mkdirs();
+		scan();
+		
+		free.add(new Checkpoint());
+		free.add(new Checkpoint());
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "checkpoint-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	// Queue the checkpoints of earlier runs for rotation, oldest step first,
+	// and delete temporary files left by an interrupted write
+	private void scan() {
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		List<File> found = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(prefix + "_")) continue;
+			if (name.endsWith(".bin.tmp") && step(name.substring(0, name.length() - 4)) >= 0) {
+				file.delete();
+			} else if (step(name) >= 0) {
+				found.add(file);
+			}
+		}
+		Collections.sort(found, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(step(a.getName()), step(b.getName()));
+			}
+		});
+		for (File file : found) { written.addLast(file.toPath()); }
+	}
+	
+	// the step of a file named <prefix>_<step>.bin, or -1 for any other name
+	private long step(String name) {
+		int from = prefix.length() + 1, to = name.length() - ".bin".length();
+		if (to <= from || !name.startsWith(prefix + "_") || !name.endsWith(".bin")) return -1;
+		for (int i = from; i < to; i++) {
+			if (!Character.isDigit(name.charAt(i))) return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(from, to));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	// true if a checkpoint is due after step <n>
+	public synchronized boolean due(int n) {
+		long now = System.nanoTime();
+		boolean due = (everySteps > 0 && n > 0 && n % everySteps == 0)
+				|| (everyNanos > 0 && now - lastTime >= everyNanos);
+		if (due) { lastTime = now; }
+		return due;
+	}
+	
+	// a free snapshot buffer, or null if both are still being written
+	public Checkpoint acquire() {
+		return free.poll();
+	}
+	
+	// write a filled buffer from acquire() in the background, then give it back
+	public void submit(final Checkpoint snapshot, final int step) {
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					write(snapshot, step);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					free.add(snapshot);
+				}
+			}
+		});
+	}
+	
+	private void write(Checkpoint snapshot, int step) throws IOException {
+		Path target = new File(directory, prefix + "_" + step + ".bin").toPath();
+		Path temp = new File(directory, prefix + "_" + step + ".bin.tmp").toPath();
+		snapshot.write(temp.toString(), float32);
+		try {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		System.out.println("Saved checkpoint " + target);
+		
+		written.remove(target);
+		written.addLast(target);
+		while (written.size() > keep) {
+			Files.deleteIfExists(written.removeFirst());
+		}
+	}
+	
+	// wait for pending writes to finish
+	public void close() throws IOException {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+}
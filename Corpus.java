@@ -0,0 +1,358 @@
+package com.mran.charnn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/******************************************************************************
+ *  A training corpus, encoded as vocabulary indices in a memory-mapped file.
+ *
+ *  The UTF-8 input is streamed through fixed-size buffers, never held in
+ *  memory whole: one pass collects the vocabulary (unless the model
+ *  already has one), a second writes each character's index as a
+ *  little-endian 16-bit value to an index file. That file is then mapped,
+ *  so training reads characters straight from the page cache and the
+ *  corpus can be larger than the heap or physical memory. Positions are
+ *  ints, so a corpus holds at most Integer.MAX_VALUE characters.
+ *
+ *  The index file is kept next to the input as <input>.idx and reused by
+ *  later runs as long as the input's size, modification time and sampled
+ *  hash (see fingerprint()) and the vocabulary still match, so reopening
+ *  a large corpus costs one small header read and a map. Its layout:
+ *
+ *    int magic, int version, long data offset,
+ *    long input size, long input mtime (ms), long input hash,
+ *    long characters, long skipped characters,
+ *    int vocabulary size, then each symbol as an int length and UTF-8 bytes,
+ *    zero padding to the data offset (a multiple of 8), then the indices.
+ *
+ *  If the input's directory is not writable the index goes to a
+ *  temporary file instead, which is removed once mapped.
+ *
+ ******************************************************************************/
+
+public class Corpus {
+	public static final int MAGIC = 0x494E5243; // "CRNI" as little-endian bytes
+	public static final int VERSION = 1;
+	public static final String SUFFIX = ".idx";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int HEADER_FIXED = 60; // bytes before the vocabulary symbols
+	private static final int COUNT_POSITION = 40;
+	private static final int SEGMENT_SHIFT = 29; // characters per mapping, 1 GB of indices
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+	private final Vocabulary vocab;
+	private final MappedByteBuffer[] segments;
+	private final int size;
+	private final long skipped;
+
+	private Corpus(Vocabulary vocab, MappedByteBuffer[] segments, int size, long skipped) {
+		this.vocab = vocab;
+		this.segments = segments;
+		this.size = size;
+		this.skipped = skipped;
+	}
+
+	// Open the UTF-8 file at <path>, from its index file if that is current.
+	// With a null <vocab> the vocabulary is built from the file; otherwise
+	// characters outside it are skipped.
+	public static Corpus open(String path, Vocabulary vocab) throws IOException {
+		Path input = Paths.get(path);
+		Path index = Paths.get(path + SUFFIX);
+		Fingerprint key = fingerprint(input);
+		Corpus cached = load(index, key, vocab);
+		if (cached != null) return cached;
+
+		if (vocab == null) { vocab = scanVocabulary(input); }
+		if (vocab.size() > 1 << 16) throw new IOException("Vocabulary too large: " + vocab.size() + " characters");
+
+		Path scratch;
+		boolean keep = true;
+		try {
+			scratch = Files.createTempFile(index.toAbsolutePath().getParent(), index.getFileName().toString(), ".tmp");
+		} catch (IOException e) {
+			scratch = Files.createTempFile("corpus", SUFFIX);
+			keep = false;
+		}
+		try {
+			Encoder encoder = new Encoder(scratch, key, vocab);
+			try {
+				decode(input, encoder);
+			} finally {
+				encoder.close();
+			}
+			if (encoder.count > Integer.MAX_VALUE) throw new IOException("Corpus too large: " + encoder.count + " characters");
+			Corpus corpus = new Corpus(vocab, map(scratch, encoder.offset, (int) encoder.count), (int) encoder.count, encoder.skipped);
+			if (keep) {
+				try {
+					Files.move(scratch, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e) {
+					System.out.println("Could not save the corpus index " + index + ": " + e.getMessage());
+				}
+			}
+			return corpus;
+		} finally {
+			// a mapped file stays readable after it is unlinked; where it is not, remove it at exit
+			try {
+				Files.deleteIfExists(scratch);
+			} catch (IOException e) {
+				scratch.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	// The index file at <index> if it was made from the same input and,
+	// when <vocab> is given, with the same vocabulary; otherwise null
+	private static Corpus load(Path index, Fingerprint key, Vocabulary vocab) throws IOException {
+		if (!Files.isRegularFile(index)) return null;
+		try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+			ByteBuffer fixed = ByteBuffer.allocate(HEADER_FIXED).order(ByteOrder.LITTLE_ENDIAN);
+			if (read(channel, fixed, 0) < HEADER_FIXED) return null;
+			fixed.flip();
+			if (fixed.getInt() != MAGIC || fixed.getInt() != VERSION) return null;
+			long offset = fixed.getLong();
+			if (fixed.getLong() != key.size || fixed.getLong() != key.modified || fixed.getLong() != key.hash) return null;
+			long count = fixed.getLong();
+			long skipped = fixed.getLong();
+			int symbols = fixed.getInt();
+			if (offset < HEADER_FIXED || offset > Integer.MAX_VALUE || count < 0 || count > Integer.MAX_VALUE
+					|| channel.size() != offset + 2*count || symbols < 0 || symbols > 1 << 16) {
+				return null;
+			}
+
+			ByteBuffer header = ByteBuffer.allocate((int) offset - HEADER_FIXED).order(ByteOrder.LITTLE_ENDIAN);
+			read(channel, header, HEADER_FIXED);
+			header.flip();
+			List<String> chars = new ArrayList<String>(symbols);
+			for (int i = 0; i < symbols; i++) {
+				if (header.remaining() < 4) return null;
+				byte[] bytes = new byte[header.getInt()];
+				if (bytes.length > header.remaining()) return null;
+				header.get(bytes);
+				chars.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+			if (vocab != null && !vocab.symbols().equals(chars)) return null;
+			if (vocab == null) { vocab = new Vocabulary(chars); }
+			return new Corpus(vocab, map(channel, offset, (int) count), (int) count, skipped);
+		}
+	}
+
+	private static int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + total);
+			if (n < 0) break;
+			total += n;
+		}
+		return total;
+	}
+
+	public Vocabulary vocabulary() {
+		return vocab;
+	}
+
+	// number of characters
+	public int size() {
+		return size;
+	}
+
+	// number of input characters left out because they were not in the vocabulary
+	public long skipped() {
+		return skipped;
+	}
+
+	// the vocabulary index of character <i>
+	public int get(int i) {
+		if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Corpus position " + i);
+		return segments[i >>> SEGMENT_SHIFT].getShort((i & SEGMENT_MASK) << 1) & 0xFFFF;
+	}
+
+	private static MappedByteBuffer[] map(Path encoded, long offset, int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(encoded, StandardOpenOption.READ)) {
+			return map(channel, offset, size);
+		}
+	}
+
+	// map the <size> indices starting at byte <offset>, in segments of at most 1 GB
+	private static MappedByteBuffer[] map(FileChannel channel, long offset, int size) throws IOException {
+		int count = (int) (((long) size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+		MappedByteBuffer[] segments = new MappedByteBuffer[count];
+		for (int s = 0; s < count; s++) {
+			long first = (long) s << SEGMENT_SHIFT;
+			long length = Math.min(1L << SEGMENT_SHIFT, size - first);
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset + (first << 1), length << 1);
+			segments[s].order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return segments;
+	}
+
+	// What identifies a version of the input: its size, modification time,
+	// and an FNV-1a hash of its first, middle and last 64 KB. The hash
+	// catches edits that keep the size and timestamp without reading the
+	// whole file.
+	private static class Fingerprint {
+		long size, modified, hash;
+	}
+
+	private static Fingerprint fingerprint(Path input) throws IOException {
+		Fingerprint key = new Fingerprint();
+		key.size = Files.size(input);
+		key.modified = Files.getLastModifiedTime(input).toMillis();
+		long hash = 0xcbf29ce484222325L;
+		ByteBuffer block = ByteBuffer.allocate(BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+			long[] starts = { 0, Math.max(0, key.size/2 - BUFFER_SIZE/2), Math.max(0, key.size - BUFFER_SIZE) };
+			for (long start : starts) {
+				block.clear();
+				int n = read(channel, block, start);
+				for (int i = 0; i < n; i++) {
+					hash ^= block.get(i) & 0xFF;
+					hash *= 0x100000001b3L;
+				}
+			}
+		}
+		key.hash = hash;
+		return key;
+	}
+
+	private static Vocabulary scanVocabulary(Path input) throws IOException {
+		final BitSet seen = new BitSet();
+		decode(input, new CodePointSink() {
+			public void accept(int c) {
+				seen.set(c);
+			}
+		});
+		return Vocabulary.of(seen);
+	}
+
+	private interface CodePointSink {
+		void accept(int codePoint) throws IOException;
+	}
+
+	// Stream the code points of a UTF-8 file into <sink>, decoding malformed
+	// input to U+FFFD as new String(bytes, UTF_8) would
+	private static void decode(Path input, CodePointSink sink) throws IOException {
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+			boolean done = false;
+			while (!done) {
+				boolean end = channel.read(bytes) < 0;
+				bytes.flip();
+				CoderResult result = decoder.decode(bytes, chars, end);
+				if (result.isError()) result.throwException();
+				bytes.compact();
+				done = end && result.isUnderflow(); // otherwise <chars> filled up first
+				if (done) { decoder.flush(chars); }
+				chars.flip();
+				drain(chars, sink, done);
+				chars.compact();
+			}
+		}
+	}
+
+	// pass on every complete code point in <chars>, holding back a high
+	// surrogate at the end in case its pair arrives with the next buffer
+	private static void drain(CharBuffer chars, CodePointSink sink, boolean end) throws IOException {
+		while (chars.hasRemaining()) {
+			char c = chars.get();
+			if (Character.isHighSurrogate(c)) {
+				if (!chars.hasRemaining()) {
+					if (end) {
+						sink.accept(c);
+					} else {
+						chars.position(chars.position() - 1);
+					}
+					return;
+				}
+				char next = chars.get(chars.position());
+				if (Character.isLowSurrogate(next)) {
+					chars.get();
+					sink.accept(Character.toCodePoint(c, next));
+					continue;
+				}
+			}
+			sink.accept(c);
+		}
+	}
+
+	// Writes the index file: the header, then each character's vocabulary index
+	private static class Encoder implements CodePointSink {
+		private final Vocabulary vocab;
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		final long offset;
+		long count, skipped;
+
+		Encoder(Path path, Fingerprint key, Vocabulary vocab) throws IOException {
+			this.vocab = vocab;
+			channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+			byte[][] symbols = new byte[vocab.size()][];
+			long length = HEADER_FIXED;
+			for (int i = 0; i < symbols.length; i++) {
+				symbols[i] = vocab.symbol(i).getBytes(StandardCharsets.UTF_8);
+				length += 4 + symbols[i].length;
+			}
+			offset = (length + 7) & ~7L;
+
+			ByteBuffer header = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putLong(offset);
+			header.putLong(key.size).putLong(key.modified).putLong(key.hash);
+			header.putLong(0).putLong(0); // counts, filled in by close()
+			header.putInt(symbols.length);
+			for (byte[] symbol : symbols) { header.putInt(symbol.length).put(symbol); }
+			header.position(header.capacity());
+			header.flip();
+			while (header.hasRemaining()) { channel.write(header); }
+		}
+
+		public void accept(int codePoint) throws IOException {
+			int index = vocab.indexOf(codePoint);
+			if (index < 0) {
+				skipped++;
+				return;
+			}
+			if (buffer.remaining() < 2) { flush(); }
+			buffer.putShort((short) index);
+			count++;
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) { channel.write(buffer); }
+			buffer.clear();
+		}
+
+		void close() throws IOException {
+			try {
+				flush();
+				ByteBuffer counts = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+				counts.putLong(count).putLong(skipped).flip();
+				while (counts.hasRemaining()) { channel.write(counts, COUNT_POSITION + counts.position()); }
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package com.mran.charnn;
+
+// Receives generated characters one at a time, as soon as each is sampled;
+// see ChaRNN.generate(). A character is one code point, as a String.
+public interface GenerationListener {
+	// Return false to stop generating
+	public boolean onCharacter(String character);
+}
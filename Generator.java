@@ -0,0 +1,105 @@
+package com.mran.charnn;
+
+/******************************************************************************
+ *  A generation session: one hidden state plus the buffers to step it.
+ *
+ *  Every buffer is allocated up front, so stepping the model produces no
+ *  garbage. The bias add is fused into tanh for the hidden state and into
+ *  a max-shifted softmax for the output, each done in a single pass over
+ *  a preallocated vector.
+ *
+ *  Characters whose successor is already known, like the seed of a
+ *  generation, only need to move the hidden state along: prefill() skips
+ *  the output projection, softmax and random draw for them.
+ *
+ *  Sampling goes through the session's own Sampler, which fuses the
+ *  output softmax into the draw.
+ *
+ *  A Generator reads a shared Weights but owns its state, so each thread
+ *  or request generating from one model needs a Generator of its own.
+ *
+ ******************************************************************************/
+
+public class Generator {
+	private final Tensor Wxh, Whh, Why;
+	private final double[] bh, by;
+
+	private final double[] h;        // hidden state
+	private final double[] z;        // hidden pre-activation, less the bias
+	private final double[] p;        // next-character probabilities
+	private Sampler sampler = new Sampler();
+
+	public Generator(Weights weights) {
+		this.Wxh = weights.Wxh;
+		this.Whh = weights.Whh;
+		this.Why = weights.Why;
+		this.bh = weights.bh;
+		this.by = weights.by;
+		h = new double[Whh.rows];
+		z = new double[Whh.rows];
+		p = new double[Why.rows];
+	}
+
+	// true if this session runs on the parameters of <weights>
+	boolean uses(Weights weights) {
+		return Wxh == weights.Wxh && Whh == weights.Whh && Why == weights.Why && bh == weights.bh && by == weights.by;
+	}
+
+	// how sample() draws its characters; each Generator starts with an unseeded Sampler of its own
+	public void setSampler(Sampler sampler) {
+		if (sampler == null) throw new IllegalArgumentException("Sampler must not be null");
+		this.sampler = sampler;
+	}
+
+	// back to the zero state of a fresh sequence
+	public void reset() {
+		Matrix.zero(h);
+	}
+
+	public void setState(double[] state) {
+		if (state.length != h.length) throw new IllegalArgumentException("State has " + state.length + " values, expected " + h.length);
+		System.arraycopy(state, 0, h, 0, h.length);
+	}
+
+	// the live hidden state; it changes with every step
+	public double[] state() {
+		return h;
+	}
+
+	// Feed in character <input> without computing what comes next
+	public void advance(int input) {
+		Matrix.column(Wxh, input, z);
+		Matrix.multiplyAdd(Whh, h, z);
+		Matrix.tanh(z, bh, h);
+	}
+
+	// Feed in characters inputs[from .. from+count), computing only the hidden state
+	public void prefill(int[] inputs, int from, int count) {
+		if (from < 0 || count < 0 || from + count > inputs.length) throw new IllegalArgumentException("Illegal input range");
+		for (int t = from; t < from + count; t++) { advance(inputs[t]); }
+	}
+
+	// Feed in <seeds> up to the last one and return it, ready for sample();
+	// the first seed goes in twice, as generation always has done
+	int prefillSeeds(int[] seeds) {
+		advance(seeds[0]);
+		prefill(seeds, 0, seeds.length - 1);
+		return seeds[seeds.length - 1];
+	}
+
+	// Feed in character <input> and return the probabilities of the next
+	// one; the returned array is reused by the next step
+	public double[] step(int input) {
+		advance(input);
+		Matrix.multiply(Why, h, p);
+		Matrix.softmax(p, by, p);
+		return p;
+	}
+
+	// Feed in character <input> and draw the next one
+	public int sample(int input) {
+		advance(input);
+		Matrix.multiply(Why, h, p);
+		return sampler.sample(p, by);
+	}
+}
@@ -0,0 +1,54 @@
+package com.mran.charnn;
+
+// Gradient buffers for every ChaRNN parameter. loss() zeroes and refills
+// the same instance each step instead of allocating new matrices.
+public class Gradients {
+	public final Tensor dWxh, dWhh, dWhy;
+	public final double[] dbh, dby;
+	
+	public Gradients(int hiddenSize, int vocabSize) {
+		this(hiddenSize, vocabSize, false);
+	}
+	
+	// weight gradients at float32 when <float32> is set; bias gradients stay double
+	public Gradients(int hiddenSize, int vocabSize, boolean float32) {
+		dWxh = new Tensor(hiddenSize, vocabSize, float32);
+		dWhh = new Tensor(hiddenSize, hiddenSize, float32);
+		dWhy = new Tensor(vocabSize, hiddenSize, float32);
+		dbh = new double[hiddenSize];
+		dby = new double[vocabSize];
+	}
+	
+	public void zero() {
+		Matrix.zero(dWxh);
+		Matrix.zero(dWhh);
+		Matrix.zero(dWhy);
+		Matrix.zero(dbh);
+		Matrix.zero(dby);
+	}
+	
+	// accumulate another set of gradients into this one
+	public void add(Gradients other) {
+		Matrix.addInPlace(dWxh, other.dWxh);
+		Matrix.addInPlace(dWhh, other.dWhh);
+		Matrix.addInPlace(dWhy, other.dWhy);
+		Matrix.add(dbh, other.dbh, dbh);
+		Matrix.add(dby, other.dby, dby);
+	}
+	
+	public void scale(double factor) {
+		Matrix.scaleInPlace(dWxh, factor);
+		Matrix.scaleInPlace(dWhh, factor);
+		Matrix.scaleInPlace(dWhy, factor);
+		Matrix.scaleInPlace(dbh, factor);
+		Matrix.scaleInPlace(dby, factor);
+	}
+	
+	public void clip(double lower, double upper) {
+		Matrix.clipInPlace(dWxh, lower, upper);
+		Matrix.clipInPlace(dWhh, lower, upper);
+		Matrix.clipInPlace(dWhy, lower, upper);
+		Matrix.clipInPlace(dbh, lower, upper);
+		Matrix.clipInPlace(dby, lower, upper);
+	}
+}
@@ -1,15 +1,15 @@
+package com.mran.charnn;
+
+// The result of ChaRNN.loss(). <grads> is the model's reusable gradient
+// buffer, so it is only valid until the next call to loss().
 public class Loss {
 	public double loss;
-	public double[][] dWxh, dWhh, dWhy;
-	public double[] dbh, dby, state;
+	public Gradients grads;
+	public double[] state;
 	
-	public Loss(double loss, double[][] dWxh, double[][] dWhh, double[][] dWhy, double[] dbh, double[] dby, double[] state) {
+	public Loss(double loss, Gradients grads, double[] state) {
 		this.loss = loss;
-		this.dWxh = dWxh;
-		this.dWhh = dWhh;
-		this.dWhy = dWhy;
-		this.dbh = dbh;
-		this.dby = dby;
+		this.grads = grads;
 		this.state = state;
 	}
 }
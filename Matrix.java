@@ -1,6 +1,7 @@
 package com.mran.charnn;
 
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 /******************************************************************************
@@ -8,18 +9,18 @@ import java.util.Random;
  *  Execution:    java Matrix
  *
  *  A bare-bones collection of static methods for manipulating
- *  matrices.
+ *  matrices. Matrices are flat row-major Tensors rather than jagged
+ *  double[][] arrays.
  *
  ******************************************************************************/
 
 public class Matrix {
 
     // return a random m-by-n matrix with values between 0 and 1
-    public static double[][] random(int m, int n) {
-        double[][] a = new double[m][n];
-        for (int i = 0; i < m; i++)
-            for (int j = 0; j < n; j++)
-                a[i][j] = StdRandom.uniform(0.0, 1.0);
+    public static Tensor random(int m, int n) {
+        Tensor a = new Tensor(m, n);
+        for (int i = 0; i < a.data.length; i++)
+            a.data[i] = StdRandom.uniform(0.0, 1.0);
         return a;
     }
 
@@ -31,10 +32,10 @@ public class Matrix {
     }
     
     // return n-by-n identity matrix I
-    public static double[][] identity(int n) {
-        double[][] a = new double[n][n];
+    public static Tensor identity(int n) {
+        Tensor a = new Tensor(n, n);
         for (int i = 0; i < n; i++)
-            a[i][i] = 1;
+            a.set(i, i, 1);
         return a;
     }
 
@@ -48,27 +49,51 @@ public class Matrix {
     }
 
     // return B = A^T
-    public static double[][] transpose(double[][] a) {
-        int m = a.length;
-        int n = a[0].length;
-        double[][] b = new double[n][m];
-        for (int i = 0; i < m; i++)
+    public static Tensor transpose(Tensor a) {
+        a = a.convert(false);
+        int m = a.rows;
+        int n = a.cols;
+        Tensor b = new Tensor(n, m);
+        for (int i = 0; i < m; i++) {
+            int ai = a.offset + i*a.stride;
             for (int j = 0; j < n; j++)
-                b[j][i] = a[i][j];
+                b.data[j*m + i] = a.data[ai + j];
+        }
         return b;
     }
 
     // return c = a + b
-    public static double[][] add(double[][] a, double[][] b) {
-        int m = a.length;
-        int n = a[0].length;
-        double[][] c = new double[m][n];
-        for (int i = 0; i < m; i++)
+    public static Tensor add(Tensor a, Tensor b) {
+        a = a.convert(false);
+        b = b.convert(false);
+        int m = a.rows;
+        int n = a.cols;
+        if (b.rows != m || b.cols != n) throw new RuntimeException("Illegal matrix dimensions.");
+        Tensor c = new Tensor(m, n);
+        for (int i = 0; i < m; i++) {
+            int ai = a.offset + i*a.stride, bi = b.offset + i*b.stride, ci = i*n;
             for (int j = 0; j < n; j++)
-                c[i][j] = a[i][j] + b[i][j];
+                c.data[ci + j] = a.data[ai + j] + b.data[bi + j];
+        }
         return c;
     }
     
+    // a += b
+    public static void addInPlace(Tensor a, Tensor b) {
+        if (b.rows != a.rows || b.cols != a.cols) throw new RuntimeException("Illegal matrix dimensions.");
+        samePrecision(a, b);
+        for (int i = 0; i < a.rows; i++) {
+            int ai = a.offset + i*a.stride, bi = b.offset + i*b.stride;
+            if (a.isFloat()) {
+                for (int j = 0; j < a.cols; j++)
+                    a.fdata[ai + j] += b.fdata[bi + j];
+            } else {
+                for (int j = 0; j < a.cols; j++)
+                    a.data[ai + j] += b.data[bi + j];
+            }
+        }
+    }
+    
     public static double[] add(double[] a, double[] b) {
     	double[] sum = new double[a.length];
     	for (int i = 0; i < a.length; i++) {
@@ -77,6 +102,13 @@ public class Matrix {
     	return sum;
     }
     
+    // c = a + b, written into <c>; <c> may be <a> or <b>
+    public static void add(double[] a, double[] b, double[] c) {
+    	for (int i = 0; i < a.length; i++) {
+    		c[i] = a[i] + b[i];
+    	}
+    }
+    
     public static double[] add(double[] a, double b) {
     	double[] sum = new double[a.length];
     	for (int i = 0; i < a.length; i++) {
@@ -85,24 +117,31 @@ public class Matrix {
     	return sum;
     }
     
-    public static double[][] add(double[][] a, double b) {
-    	double[][] sum = new double[a.length][a[0].length];
-    	for (int i = 0; i < a.length; i++) {
-    		for (int j = 0; j < a[0].length; j++) {
-    			sum[i][j] = a[i][j] + b;
+    public static Tensor add(Tensor a, double b) {
+    	a = a.convert(false);
+    	Tensor sum = new Tensor(a.rows, a.cols);
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride, si = i*a.cols;
+    		for (int j = 0; j < a.cols; j++) {
+    			sum.data[si + j] = a.data[ai + j] + b;
     		}
     	}
     	return sum;
     }
 
     // return c = a - b
-    public static double[][] subtract(double[][] a, double[][] b) {
-        int m = a.length;
-        int n = a[0].length;
-        double[][] c = new double[m][n];
-        for (int i = 0; i < m; i++)
+    public static Tensor subtract(Tensor a, Tensor b) {
+        a = a.convert(false);
+        b = b.convert(false);
+        int m = a.rows;
+        int n = a.cols;
+        if (b.rows != m || b.cols != n) throw new RuntimeException("Illegal matrix dimensions.");
+        Tensor c = new Tensor(m, n);
+        for (int i = 0; i < m; i++) {
+            int ai = a.offset + i*a.stride, bi = b.offset + i*b.stride, ci = i*n;
             for (int j = 0; j < n; j++)
-                c[i][j] = a[i][j] - b[i][j];
+                c.data[ci + j] = a.data[ai + j] - b.data[bi + j];
+        }
         return c;
     }
     
@@ -115,69 +154,537 @@ public class Matrix {
     }
 
     // return c = a * b
-    public static double[][] multiply(double[][] a, double[][] b) {
-        int m1 = a.length;
-        int n1 = a[0].length;
-        int m2 = b.length;
-        int n2 = b[0].length;
-        if (n1 != m2) throw new RuntimeException("Illegal matrix dimensions.");
-        double[][] c = new double[m1][n2];
-        for (int i = 0; i < m1; i++)
-            for (int j = 0; j < n2; j++)
-                for (int k = 0; k < n1; k++)
-                    c[i][j] += a[i][k] * b[k][j];
+    public static Tensor multiply(Tensor a, Tensor b) {
+        if (a.cols != b.rows) throw new RuntimeException("Illegal matrix dimensions.");
+        Tensor c = new Tensor(a.rows, b.cols, a.isFloat());
+        gemm(false, false, a, b, c);
         return c;
     }
 
+    // Block sizes for gemm(); a BLOCK-by-BLOCK tile of doubles is 32KB
+    private static final int BLOCK = 64;
+    private static final int DEPTH_BLOCK = 256;
+
+    // general matrix multiply-accumulate: C += op(A) * op(B), where op(X) is
+    // X or X^T depending on the flag. Loops are tiled so the working set of
+    // each inner loop stays in cache; this is the one place to swap in a
+    // faster kernel.
+    public static void gemm(boolean transA, boolean transB, Tensor a, Tensor b, Tensor c) {
+        int m = transA ? a.cols : a.rows;
+        int k = transA ? a.rows : a.cols;
+        int kb = transB ? b.cols : b.rows;
+        int n = transB ? b.rows : b.cols;
+        if (k != kb || c.rows != m || c.cols != n) throw new RuntimeException("Illegal matrix dimensions.");
+        samePrecision(a, b);
+        samePrecision(a, c);
+        if (a.isFloat()) {
+            gemmFloat(transA, transB, a, b, c, m, n, k);
+            return;
+        }
+        double[] ad = a.data, bd = b.data, cd = c.data;
+
+        if (!transA && !transB) {
+            // C[i][j] += A[i][p] * B[p][j]: stream rows of B into rows of C
+            for (int p0 = 0; p0 < k; p0 += DEPTH_BLOCK) {
+                int p1 = Math.min(p0 + DEPTH_BLOCK, k);
+                for (int j0 = 0; j0 < n; j0 += DEPTH_BLOCK) {
+                    int j1 = Math.min(j0 + DEPTH_BLOCK, n);
+                    for (int i = 0; i < m; i++) {
+                        int ai = a.offset + i*a.stride, ci = c.offset + i*c.stride;
+                        for (int p = p0; p < p1; p++) {
+                            double aip = ad[ai + p];
+                            if (aip == 0.0) continue;
+                            int bp = b.offset + p*b.stride;
+                            for (int j = j0; j < j1; j++)
+                                cd[ci + j] += aip * bd[bp + j];
+                        }
+                    }
+                }
+            }
+        } else if (!transA) {
+            // C[i][j] += A[i][p] * B[j][p]: dot products of rows of A and B
+            for (int i0 = 0; i0 < m; i0 += BLOCK) {
+                int i1 = Math.min(i0 + BLOCK, m);
+                for (int j0 = 0; j0 < n; j0 += BLOCK) {
+                    int j1 = Math.min(j0 + BLOCK, n);
+                    for (int p0 = 0; p0 < k; p0 += DEPTH_BLOCK) {
+                        int p1 = Math.min(p0 + DEPTH_BLOCK, k);
+                        int i = i0;
+                        // two rows by four columns at a time, so each load of A
+                        // serves four columns and each load of B serves two rows
+                        for (; i + 1 < i1; i += 2) {
+                            int ai = a.offset + i*a.stride, ai1 = ai + a.stride;
+                            int ci = c.offset + i*c.stride, ci1 = ci + c.stride;
+                            int j = j0;
+                            for (; j + 3 < j1; j += 4) {
+                                int b0 = b.offset + j*b.stride, b1 = b0 + b.stride, b2 = b1 + b.stride, b3 = b2 + b.stride;
+                                double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+                                double t0 = 0.0, t1 = 0.0, t2 = 0.0, t3 = 0.0;
+                                for (int p = p0; p < p1; p++) {
+                                    double aip = ad[ai + p], ai1p = ad[ai1 + p];
+                                    double bj0 = bd[b0 + p], bj1 = bd[b1 + p], bj2 = bd[b2 + p], bj3 = bd[b3 + p];
+                                    s0 += aip * bj0;
+                                    s1 += aip * bj1;
+                                    s2 += aip * bj2;
+                                    s3 += aip * bj3;
+                                    t0 += ai1p * bj0;
+                                    t1 += ai1p * bj1;
+                                    t2 += ai1p * bj2;
+                                    t3 += ai1p * bj3;
+                                }
+                                cd[ci + j] += s0;
+                                cd[ci + j + 1] += s1;
+                                cd[ci + j + 2] += s2;
+                                cd[ci + j + 3] += s3;
+                                cd[ci1 + j] += t0;
+                                cd[ci1 + j + 1] += t1;
+                                cd[ci1 + j + 2] += t2;
+                                cd[ci1 + j + 3] += t3;
+                            }
+                            for (; j < j1; j++) {
+                                int bj = b.offset + j*b.stride;
+                                double sum = 0.0, sum1 = 0.0;
+                                for (int p = p0; p < p1; p++) {
+                                    sum += ad[ai + p] * bd[bj + p];
+                                    sum1 += ad[ai1 + p] * bd[bj + p];
+                                }
+                                cd[ci + j] += sum;
+                                cd[ci1 + j] += sum1;
+                            }
+                        }
+                        for (; i < i1; i++) {
+                            int ai = a.offset + i*a.stride, ci = c.offset + i*c.stride;
+                            int j = j0;
+                            // four columns at a time, sharing each load of A
+                            for (; j + 3 < j1; j += 4) {
+                                int b0 = b.offset + j*b.stride, b1 = b0 + b.stride, b2 = b1 + b.stride, b3 = b2 + b.stride;
+                                double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+                                for (int p = p0; p < p1; p++) {
+                                    double aip = ad[ai + p];
+                                    s0 += aip * bd[b0 + p];
+                                    s1 += aip * bd[b1 + p];
+                                    s2 += aip * bd[b2 + p];
+                                    s3 += aip * bd[b3 + p];
+                                }
+                                cd[ci + j] += s0;
+                                cd[ci + j + 1] += s1;
+                                cd[ci + j + 2] += s2;
+                                cd[ci + j + 3] += s3;
+                            }
+                            for (; j < j1; j++) {
+                                int bj = b.offset + j*b.stride;
+                                double sum = 0.0;
+                                for (int p = p0; p < p1; p++)
+                                    sum += ad[ai + p] * bd[bj + p];
+                                cd[ci + j] += sum;
+                            }
+                        }
+                    }
+                }
+            }
+        } else if (!transB) {
+            // C[i][j] += A[p][i] * B[p][j]: a sum of outer products of rows
+            for (int i0 = 0; i0 < m; i0 += BLOCK) {
+                int i1 = Math.min(i0 + BLOCK, m);
+                for (int j0 = 0; j0 < n; j0 += DEPTH_BLOCK) {
+                    int j1 = Math.min(j0 + DEPTH_BLOCK, n);
+                    for (int p = 0; p < k; p++) {
+                        int ap = a.offset + p*a.stride, bp = b.offset + p*b.stride;
+                        for (int i = i0; i < i1; i++) {
+                            double api = ad[ap + i];
+                            if (api == 0.0) continue;
+                            int ci = c.offset + i*c.stride;
+                            for (int j = j0; j < j1; j++)
+                                cd[ci + j] += api * bd[bp + j];
+                        }
+                    }
+                }
+            }
+        } else {
+            // C[i][j] += A[p][i] * B[j][p]; not used in the hot paths
+            for (int i = 0; i < m; i++) {
+                int ci = c.offset + i*c.stride;
+                for (int j = 0; j < n; j++) {
+                    int bj = b.offset + j*b.stride;
+                    double sum = 0.0;
+                    for (int p = 0; p < k; p++)
+                        sum += ad[a.offset + p*a.stride + i] * bd[bj + p];
+                    cd[ci + j] += sum;
+                }
+            }
+        }
+    }
+
+    // gemm() on float32 tensors; the same loops with float accumulators
+    private static void gemmFloat(boolean transA, boolean transB, Tensor a, Tensor b, Tensor c, int m, int n, int k) {
+        float[] ad = a.fdata, bd = b.fdata, cd = c.fdata;
+
+        if (!transA && !transB) {
+            // C[i][j] += A[i][p] * B[p][j]: stream rows of B into rows of C
+            for (int p0 = 0; p0 < k; p0 += DEPTH_BLOCK) {
+                int p1 = Math.min(p0 + DEPTH_BLOCK, k);
+                for (int j0 = 0; j0 < n; j0 += DEPTH_BLOCK) {
+                    int j1 = Math.min(j0 + DEPTH_BLOCK, n);
+                    for (int i = 0; i < m; i++) {
+                        int ai = a.offset + i*a.stride, ci = c.offset + i*c.stride;
+                        for (int p = p0; p < p1; p++) {
+                            float aip = ad[ai + p];
+                            if (aip == 0.0) continue;
+                            int bp = b.offset + p*b.stride;
+                            for (int j = j0; j < j1; j++)
+                                cd[ci + j] += aip * bd[bp + j];
+                        }
+                    }
+                }
+            }
+        } else if (!transA) {
+            // C[i][j] += A[i][p] * B[j][p]: dot products of rows of A and B
+            for (int i0 = 0; i0 < m; i0 += BLOCK) {
+                int i1 = Math.min(i0 + BLOCK, m);
+                for (int j0 = 0; j0 < n; j0 += BLOCK) {
+                    int j1 = Math.min(j0 + BLOCK, n);
+                    for (int p0 = 0; p0 < k; p0 += DEPTH_BLOCK) {
+                        int p1 = Math.min(p0 + DEPTH_BLOCK, k);
+                        int i = i0;
+                        // two rows by four columns at a time, so each load of A
+                        // serves four columns and each load of B serves two rows
+                        for (; i + 1 < i1; i += 2) {
+                            int ai = a.offset + i*a.stride, ai1 = ai + a.stride;
+                            int ci = c.offset + i*c.stride, ci1 = ci + c.stride;
+                            int j = j0;
+                            for (; j + 3 < j1; j += 4) {
+                                int b0 = b.offset + j*b.stride, b1 = b0 + b.stride, b2 = b1 + b.stride, b3 = b2 + b.stride;
+                                float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+                                float t0 = 0f, t1 = 0f, t2 = 0f, t3 = 0f;
+                                for (int p = p0; p < p1; p++) {
+                                    float aip = ad[ai + p], ai1p = ad[ai1 + p];
+                                    float bj0 = bd[b0 + p], bj1 = bd[b1 + p], bj2 = bd[b2 + p], bj3 = bd[b3 + p];
+                                    s0 += aip * bj0;
+                                    s1 += aip * bj1;
+                                    s2 += aip * bj2;
+                                    s3 += aip * bj3;
+                                    t0 += ai1p * bj0;
+                                    t1 += ai1p * bj1;
+                                    t2 += ai1p * bj2;
+                                    t3 += ai1p * bj3;
+                                }
+                                cd[ci + j] += s0;
+                                cd[ci + j + 1] += s1;
+                                cd[ci + j + 2] += s2;
+                                cd[ci + j + 3] += s3;
+                                cd[ci1 + j] += t0;
+                                cd[ci1 + j + 1] += t1;
+                                cd[ci1 + j + 2] += t2;
+                                cd[ci1 + j + 3] += t3;
+                            }
+                            for (; j < j1; j++) {
+                                int bj = b.offset + j*b.stride;
+                                float sum = 0f, sum1 = 0f;
+                                for (int p = p0; p < p1; p++) {
+                                    sum += ad[ai + p] * bd[bj + p];
+                                    sum1 += ad[ai1 + p] * bd[bj + p];
+                                }
+                                cd[ci + j] += sum;
+                                cd[ci1 + j] += sum1;
+                            }
+                        }
+                        for (; i < i1; i++) {
+                            int ai = a.offset + i*a.stride, ci = c.offset + i*c.stride;
+                            int j = j0;
+                            // four columns at a time, sharing each load of A
+                            for (; j + 3 < j1; j += 4) {
+                                int b0 = b.offset + j*b.stride, b1 = b0 + b.stride, b2 = b1 + b.stride, b3 = b2 + b.stride;
+                                float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+                                for (int p = p0; p < p1; p++) {
+                                    float aip = ad[ai + p];
+                                    s0 += aip * bd[b0 + p];
+                                    s1 += aip * bd[b1 + p];
+                                    s2 += aip * bd[b2 + p];
+                                    s3 += aip * bd[b3 + p];
+                                }
+                                cd[ci + j] += s0;
+                                cd[ci + j + 1] += s1;
+                                cd[ci + j + 2] += s2;
+                                cd[ci + j + 3] += s3;
+                            }
+                            for (; j < j1; j++) {
+                                int bj = b.offset + j*b.stride;
+                                float sum = 0f;
+                                for (int p = p0; p < p1; p++)
+                                    sum += ad[ai + p] * bd[bj + p];
+                                cd[ci + j] += sum;
+                            }
+                        }
+                    }
+                }
+            }
+        } else if (!transB) {
+            // C[i][j] += A[p][i] * B[p][j]: a sum of outer products of rows
+            for (int i0 = 0; i0 < m; i0 += BLOCK) {
+                int i1 = Math.min(i0 + BLOCK, m);
+                for (int j0 = 0; j0 < n; j0 += DEPTH_BLOCK) {
+                    int j1 = Math.min(j0 + DEPTH_BLOCK, n);
+                    for (int p = 0; p < k; p++) {
+                        int ap = a.offset + p*a.stride, bp = b.offset + p*b.stride;
+                        for (int i = i0; i < i1; i++) {
+                            float api = ad[ap + i];
+                            if (api == 0.0) continue;
+                            int ci = c.offset + i*c.stride;
+                            for (int j = j0; j < j1; j++)
+                                cd[ci + j] += api * bd[bp + j];
+                        }
+                    }
+                }
+            }
+        } else {
+            // C[i][j] += A[p][i] * B[j][p]
+            for (int i = 0; i < m; i++) {
+                int ci = c.offset + i*c.stride;
+                for (int j = 0; j < n; j++) {
+                    int bj = b.offset + j*b.stride;
+                    float sum = 0f;
+                    for (int p = 0; p < k; p++)
+                        sum += ad[a.offset + p*a.stride + i] * bd[bj + p];
+                    cd[ci + j] += sum;
+                }
+            }
+        }
+    }
+
     // matrix-vector multiplication (y = A * x)
-    public static double[] multiply(double[][] a, double[] x) {
-        int m = a.length;
-        int n = a[0].length;
+    public static double[] multiply(Tensor a, double[] x) {
+        int m = a.rows;
+        int n = a.cols;
         if (x.length != n) throw new RuntimeException("Illegal matrix dimensions.");
         double[] y = new double[m];
-        for (int i = 0; i < m; i++)
-            for (int j = 0; j < n; j++)
-                y[i] += a[i][j] * x[j];
+        multiplyAdd(a, x, y);
         return y;
     }
 
+    // matrix-vector multiplication written into <y> (y = A * x)
+    public static void multiply(Tensor a, double[] x, double[] y) {
+        if (x.length != a.cols || y.length != a.rows) throw new RuntimeException("Illegal matrix dimensions.");
+        Arrays.fill(y, 0.0);
+        multiplyAdd(a, x, y);
+    }
+
+    // accumulating matrix-vector multiplication (y += A * x)
+    public static void multiplyAdd(Tensor a, double[] x, double[] y) {
+        int m = a.rows;
+        int n = a.cols;
+        if (x.length != n || y.length != m) throw new RuntimeException("Illegal matrix dimensions.");
+        int i = 0;
+        if (a.isFloat()) {
+            // four rows at a time, sharing each load of x
+            float[] ad = a.fdata;
+            for (; i + 3 < m; i += 4) {
+                int a0 = a.offset + i*a.stride, a1 = a0 + a.stride, a2 = a1 + a.stride, a3 = a2 + a.stride;
+                double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+                for (int j = 0; j < n; j++) {
+                    double xj = x[j];
+                    s0 += ad[a0 + j] * xj;
+                    s1 += ad[a1 + j] * xj;
+                    s2 += ad[a2 + j] * xj;
+                    s3 += ad[a3 + j] * xj;
+                }
+                y[i] += s0;
+                y[i + 1] += s1;
+                y[i + 2] += s2;
+                y[i + 3] += s3;
+            }
+        }
+        for (; i < m; i++) {
+            int ai = a.offset + i*a.stride;
+            double sum = 0.0;
+            if (a.isFloat()) {
+                for (int j = 0; j < n; j++)
+                    sum += a.fdata[ai + j] * x[j];
+            } else {
+                for (int j = 0; j < n; j++)
+                    sum += a.data[ai + j] * x[j];
+            }
+            y[i] += sum;
+        }
+    }
+
+
+    // transposed matrix-vector multiplication written into <y> (y = A^T * x),
+    // computed on A's own layout without materializing the transpose
+    public static void multiplyTransposed(Tensor a, double[] x, double[] y) {
+        if (x.length != a.rows || y.length != a.cols) throw new RuntimeException("Illegal matrix dimensions.");
+        Arrays.fill(y, 0.0);
+        multiplyTransposedAdd(a, x, y);
+    }
+
+    // accumulating transposed matrix-vector multiplication (y += A^T * x)
+    public static void multiplyTransposedAdd(Tensor a, double[] x, double[] y) {
+        int m = a.rows;
+        int n = a.cols;
+        if (x.length != m || y.length != n) throw new RuntimeException("Illegal matrix dimensions.");
+        // walk A row by row so memory access stays sequential
+        for (int i = 0; i < m; i++) {
+            double xi = x[i];
+            if (xi == 0.0) continue;
+            int ai = a.offset + i*a.stride;
+            if (a.isFloat()) {
+                for (int j = 0; j < n; j++)
+                    y[j] += a.fdata[ai + j] * xi;
+            } else {
+                for (int j = 0; j < n; j++)
+                    y[j] += a.data[ai + j] * xi;
+            }
+        }
+    }
+
 
     // vector-matrix multiplication (y = x^T A)
-    public static double[] multiply(double[] x, double[][] a) {
-        int m = a.length;
-        int n = a[0].length;
+    public static double[] multiply(double[] x, Tensor a) {
+        int m = a.rows;
+        int n = a.cols;
         if (x.length != m) throw new RuntimeException("Illegal matrix dimensions.");
         double[] y = new double[n];
-        for (int j = 0; j < n; j++)
-            for (int i = 0; i < m; i++)
-                y[j] += a[i][j] * x[i];
+        multiplyTransposedAdd(a, x, y);
         return y;
     }
     
+    // column <j> of A, i.e. y = A * x where x is the one-hot vector e_j
+    public static double[] column(Tensor a, int j) {
+    	if (j < 0 || j >= a.cols) throw new RuntimeException("Illegal matrix dimensions.");
+    	double[] y = new double[a.rows];
+    	column(a, j, y);
+    	return y;
+    }
+    
+    // column <j> of A written into <y>
+    public static void column(Tensor a, int j, double[] y) {
+    	if (j < 0 || j >= a.cols || y.length != a.rows) throw new RuntimeException("Illegal matrix dimensions.");
+    	for (int i = 0, ai = a.offset + j; i < a.rows; i++, ai += a.stride) {
+    		y[i] = a.isFloat() ? a.fdata[ai] : a.data[ai];
+    	}
+    }
+    
+    // row r of <out> = column idx[from + r] of W; gathers one input column per row
+    public static void gatherColumns(Tensor w, int[] idx, int from, Tensor out) {
+    	if (out.cols != w.rows) throw new RuntimeException("Illegal matrix dimensions.");
+    	samePrecision(w, out);
+    	for (int r = 0; r < out.rows; r++) {
+    		int j = idx[from + r];
+    		if (j < 0 || j >= w.cols) throw new RuntimeException("Illegal matrix dimensions.");
+    		int oi = out.offset + r*out.stride;
+    		if (w.isFloat()) {
+    			for (int i = 0, wi = w.offset + j; i < w.rows; i++, wi += w.stride) {
+    				out.fdata[oi + i] = w.fdata[wi];
+    			}
+    		} else {
+    			for (int i = 0, wi = w.offset + j; i < w.rows; i++, wi += w.stride) {
+    				out.data[oi + i] = w.data[wi];
+    			}
+    		}
+    	}
+    }
+    
+    // column idx[from + r] of W += row r of <x>; the inverse of gatherColumns
+    public static void scatterAddColumns(Tensor w, int[] idx, int from, Tensor x) {
+    	if (x.cols != w.rows) throw new RuntimeException("Illegal matrix dimensions.");
+    	samePrecision(w, x);
+    	for (int r = 0; r < x.rows; r++) {
+    		int j = idx[from + r];
+    		if (j < 0 || j >= w.cols) throw new RuntimeException("Illegal matrix dimensions.");
+    		int xi = x.offset + r*x.stride;
+    		if (w.isFloat()) {
+    			for (int i = 0, wi = w.offset + j; i < w.rows; i++, wi += w.stride) {
+    				w.fdata[wi] += x.fdata[xi + i];
+    			}
+    		} else {
+    			for (int i = 0, wi = w.offset + j; i < w.rows; i++, wi += w.stride) {
+    				w.data[wi] += x.data[xi + i];
+    			}
+    		}
+    	}
+    }
+    
+    // add <v> to every row of A (broadcast bias add)
+    public static void addToRows(Tensor a, double[] v) {
+    	if (v.length != a.cols) throw new RuntimeException("Illegal matrix dimensions.");
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride;
+    		if (a.isFloat()) {
+    			for (int j = 0; j < a.cols; j++) {
+    				a.fdata[ai + j] += v[j];
+    			}
+    		} else {
+    			for (int j = 0; j < a.cols; j++) {
+    				a.data[ai + j] += v[j];
+    			}
+    		}
+    	}
+    }
+    
+    // sum[j] += sum over rows of A[i][j]
+    public static void addColumnSums(Tensor a, double[] sum) {
+    	if (sum.length != a.cols) throw new RuntimeException("Illegal matrix dimensions.");
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride;
+    		if (a.isFloat()) {
+    			for (int j = 0; j < a.cols; j++) {
+    				sum[j] += a.fdata[ai + j];
+    			}
+    		} else {
+    			for (int j = 0; j < a.cols; j++) {
+    				sum[j] += a.data[ai + j];
+    			}
+    		}
+    	}
+    }
+    
     // <a> is mx1, <b> is 1xn
-    public static double[][] multiply(double[] a, double[] b) {
+    public static Tensor multiply(double[] a, double[] b) {
     	int m = a.length;
     	int n = b.length;
-    	double[][] c = new double[m][n];
+    	Tensor c = new Tensor(m, n);
     	for (int i = 0; i < m; i++) {
+    		int ci = i*n;
     		for (int j = 0; j < n; j++) {
-    			c[i][j] = a[i]*b[j];
+    			c.data[ci + j] = a[i]*b[j];
     		}
     	}
     	return c;
     }
     
     // matrix scalar multiplication
-    public static double[][] multiply(double[][] matrix, double scale){
-    	double[][] result = new double[matrix.length][matrix[0].length];
-    	for(int r = 0; r < matrix.length; r++) {
-    		for(int c = 0; c < matrix[0].length; c++) {
-    			result[r][c] = matrix[r][c] * scale;
+    public static Tensor multiply(Tensor matrix, double scale){
+    	matrix = matrix.convert(false);
+    	Tensor result = new Tensor(matrix.rows, matrix.cols);
+    	for(int r = 0; r < matrix.rows; r++) {
+    		int mr = matrix.offset + r*matrix.stride, rr = r*matrix.cols;
+    		for(int c = 0; c < matrix.cols; c++) {
+    			result.data[rr + c] = matrix.data[mr + c] * scale;
     		}
     	}
     	return result;
     }
     
+    public static void scaleInPlace(Tensor matrix, double scale) {
+    	for(int r = 0; r < matrix.rows; r++) {
+    		int mr = matrix.offset + r*matrix.stride;
+    		if (matrix.isFloat()) {
+    			for(int c = mr; c < mr + matrix.cols; c++) {
+    				matrix.fdata[c] *= scale;
+    			}
+    		} else {
+    			for(int c = mr; c < mr + matrix.cols; c++) {
+    				matrix.data[c] *= scale;
+    			}
+    		}
+    	}
+    }
+    
+    public static void scaleInPlace(double[] vector, double scale) {
+    	for(int i = 0; i < vector.length; i++) {
+    		vector[i] *= scale;
+    	}
+    }
+    
     // vector scalar multiplication
     public static double[] multiply(double[] vector, double scale){
     	double[] result = new double[vector.length];
@@ -196,11 +703,14 @@ public class Matrix {
     	return result;
     }
     
-    public static double[][] elementMult(double[][] a, double[][] b) {
-    	double[][] result = new double[a.length][a[0].length];
-    	for (int i = 0; i < a.length; i++) {
-    		for (int j = 0; j < a[0].length; j++) {
-    			result[i][j] = a[i][j] * b[i][j];
+    public static Tensor elementMult(Tensor a, Tensor b) {
+    	a = a.convert(false);
+    	b = b.convert(false);
+    	Tensor result = new Tensor(a.rows, a.cols);
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride, bi = b.offset + i*b.stride, ri = i*a.cols;
+    		for (int j = 0; j < a.cols; j++) {
+    			result.data[ri + j] = a.data[ai + j] * b.data[bi + j];
     		}
     	}
     	return result;
@@ -224,22 +734,27 @@ public class Matrix {
     }
     
     // requirements: a and b are same shape
-    public static double[][] divide(double[][] a, double[][] b) {
-    	double[][] result = new double[a.length][a[0].length];
-    	for (int i = 0; i < a.length; i++) {
-    		for (int j = 0; j < a[0].length; j++) {
-    			result[i][j] = a[i][j] / b[i][j];
+    public static Tensor divide(Tensor a, Tensor b) {
+    	a = a.convert(false);
+    	b = b.convert(false);
+    	Tensor result = new Tensor(a.rows, a.cols);
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride, bi = b.offset + i*b.stride, ri = i*a.cols;
+    		for (int j = 0; j < a.cols; j++) {
+    			result.data[ri + j] = a.data[ai + j] / b.data[bi + j];
     		}
     	}
     	return result;
     }
     
     // element-wise sqrt
-    public static double[][] sqrt(double[][] a) {
-    	double[][] result = new double[a.length][a[0].length];
-    	for (int i = 0; i < a.length; i++) {
-    		for (int j = 0; j < a[0].length; j++) {
-    			result[i][j] = Math.sqrt(a[i][j]);
+    public static Tensor sqrt(Tensor a) {
+    	a = a.convert(false);
+    	Tensor result = new Tensor(a.rows, a.cols);
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride, ri = i*a.cols;
+    		for (int j = 0; j < a.cols; j++) {
+    			result.data[ri + j] = Math.sqrt(a.data[ai + j]);
     		}
     	}
     	return result;
@@ -269,6 +784,36 @@ public class Matrix {
     	return result;
     }
     
+    // element-wise tanh written into <result>; <result> may be <vector>
+    public static void tanh(double[] vector, double[] result) {
+    	for (int i = 0; i < vector.length; i++) {
+    		result[i] = Math.tanh(vector[i]);
+    	}
+    }
+    
+    // element-wise tanh(vector + bias), the bias add fused in; <result> may be <vector>
+    public static void tanh(double[] vector, double[] bias, double[] result) {
+    	if (bias.length != vector.length || result.length != vector.length) throw new RuntimeException("Illegal vector dimensions.");
+    	for (int i = 0; i < vector.length; i++) {
+    		result[i] = Math.tanh(vector[i] + bias[i]);
+    	}
+    }
+    
+    public static void tanhInPlace(Tensor a) {
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride;
+    		if (a.isFloat()) {
+    			for (int j = ai; j < ai + a.cols; j++) {
+    				a.fdata[j] = (float) Math.tanh(a.fdata[j]);
+    			}
+    		} else {
+    			for (int j = ai; j < ai + a.cols; j++) {
+    				a.data[j] = Math.tanh(a.data[j]);
+    			}
+    		}
+    	}
+    }
+    
     public static double sum(double[] vector) {
     	double result = 0;
     	for (double d : vector) { result += d; }
@@ -277,25 +822,79 @@ public class Matrix {
     }
     
     public static double[] softmax(double[] vector) {
-    	return divide(exp(vector), sum(exp(vector)));
+    	double[] result = new double[vector.length];
+    	softmax(vector, result);
+    	return result;
+    }
+    
+    // softmax written into <result>; <result> may be <vector>
+    public static void softmax(double[] vector, double[] result) {
+    	softmax(vector, null, result);
+    }
+    
+    // softmax(vector + bias), the bias add fused in; <bias> may be null and
+    // <result> may be <vector>. The logits are shifted by their max before
+    // exp() so large ones cannot overflow.
+    public static void softmax(double[] vector, double[] bias, double[] result) {
+    	if ((bias != null && bias.length != vector.length) || result.length != vector.length) throw new RuntimeException("Illegal vector dimensions.");
+    	double max = Double.NEGATIVE_INFINITY;
+    	for (int i = 0; i < vector.length; i++) {
+    		result[i] = bias != null ? vector[i] + bias[i] : vector[i];
+    		max = Math.max(max, result[i]);
+    	}
+    	double sum = 0.0;
+    	for (int i = 0; i < vector.length; i++) {
+    		result[i] = Math.exp(result[i] - max);
+    		sum += result[i];
+    	}
+    	double scale = 1.0 / sum;
+    	for (int i = 0; i < vector.length; i++) {
+    		result[i] *= scale;
+    	}
     }
     
-    public static double sum(double[][] m) {
+    // softmax of each row of A, in place
+    public static void softmaxInPlace(Tensor a) {
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride;
+    		double sum = 0.0;
+    		// shift the logits by their max first, so large ones don't overflow exp()
+    		double max = Double.NEGATIVE_INFINITY;
+    		if (a.isFloat()) {
+    			for (int j = ai; j < ai + a.cols; j++) { max = Math.max(max, a.fdata[j]); }
+    			for (int j = ai; j < ai + a.cols; j++) {
+    				a.fdata[j] = (float) Math.exp(a.fdata[j] - max);
+    				sum += a.fdata[j];
+    			}
+    			for (int j = ai; j < ai + a.cols; j++) {
+    				a.fdata[j] /= sum;
+    			}
+    		} else {
+    			for (int j = ai; j < ai + a.cols; j++) { max = Math.max(max, a.data[j]); }
+    			for (int j = ai; j < ai + a.cols; j++) {
+    				a.data[j] = Math.exp(a.data[j] - max);
+    				sum += a.data[j];
+    			}
+    			for (int j = ai; j < ai + a.cols; j++) {
+    				a.data[j] /= sum;
+    			}
+    		}
+    	}
+    }
+    
+    public static double sum(Tensor m) {
     	double result = 0;
-    	for(int i = 0; i < m.length; i++) {
-    		double[] vector = m[i];
-    		for (double d : vector) { result += d; }
+    	for(int i = 0; i < m.rows; i++) {
+    		for (int j = 0; j < m.cols; j++) { result += m.get(i, j); }
     	}
     	return result;
     }
     
-    public static double[][] clip(double[][] a, double lower, double upper) {
-    	double[][] b = a.clone();
-    	for (int i = 0; i < a.length; i++) {
-    		for (int j = 0; j < a[0].length; j++) {
-    			if (b[i][j] < lower) { b[i][j] = lower; }
-    			if (b[i][j] > upper) { b[i][j] = upper; }
-    		}
+    public static Tensor clip(Tensor a, double lower, double upper) {
+    	Tensor b = a.convert(false).copy();
+    	for (int i = 0; i < b.data.length; i++) {
+    		if (b.data[i] < lower) { b.data[i] = lower; }
+    		if (b.data[i] > upper) { b.data[i] = upper; }
     	}
     	return b;
     }
@@ -309,22 +908,84 @@ public class Matrix {
     	return b;
     }
     
-    public static double[] ravel(double[][] a) {
-    	double[] b = new double[a.length*a[0].length];
-    	int index = 0;
-    	for (double[] row : a) {
-    		for (double item : row) {
-    			b[index] = item;
-    			index++;
+    public static void clipInPlace(Tensor a, double lower, double upper) {
+    	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride;
+    		if (a.isFloat()) {
+    			float lo = (float) lower, hi = (float) upper;
+    			for (int j = ai; j < ai + a.cols; j++) {
+    				if (a.fdata[j] < lo) { a.fdata[j] = lo; }
+    				if (a.fdata[j] > hi) { a.fdata[j] = hi; }
+    			}
+    		} else {
+    			for (int j = ai; j < ai + a.cols; j++) {
+    				if (a.data[j] < lower) { a.data[j] = lower; }
+    				if (a.data[j] > upper) { a.data[j] = upper; }
+    			}
     		}
     	}
-    	return b;
     }
     
-    public static void zero(double[][] a) {
-     	for (int i = 0; i < a.length; i++) {
-    		for (int j = 0; j < a[0].length; j++) {
-    			a[i][j] = 0.0;
+    public static void clipInPlace(double[] a, double lower, double upper) {
+    	for (int i = 0; i < a.length; i++) {
+    		if (a[i] < lower) { a[i] = lower; }
+    		if (a[i] > upper) { a[i] = upper; }
+    	}
+    }
+    
+    // copy the elements of <from> into <to>, converting precision if they differ
+    public static void copy(Tensor from, Tensor to) {
+    	if (from.rows != to.rows || from.cols != to.cols) throw new RuntimeException("Illegal matrix dimensions.");
+    	for (int i = 0; i < from.rows; i++) {
+    		int fi = from.offset + i*from.stride, ti = to.offset + i*to.stride;
+    		if (from.isFloat() && to.isFloat()) {
+    			System.arraycopy(from.fdata, fi, to.fdata, ti, from.cols);
+    		} else if (!from.isFloat() && !to.isFloat()) {
+    			System.arraycopy(from.data, fi, to.data, ti, from.cols);
+    		} else if (to.isFloat()) {
+    			for (int j = 0; j < from.cols; j++) { to.fdata[ti + j] = (float) from.data[fi + j]; }
+    		} else {
+    			for (int j = 0; j < from.cols; j++) { to.data[ti + j] = from.fdata[fi + j]; }
+    		}
+    	}
+    }
+    
+    // backprop through tanh: dhraw = (1 - h*h) * dh, element-wise, where h = tanh(x)
+    public static void tanhBackward(Tensor h, Tensor dh, Tensor dhraw) {
+    	if (dh.rows != h.rows || dh.cols != h.cols || dhraw.rows != h.rows || dhraw.cols != h.cols) throw new RuntimeException("Illegal matrix dimensions.");
+    	samePrecision(h, dh);
+    	samePrecision(h, dhraw);
+    	for (int i = 0; i < h.rows; i++) {
+    		int hi = h.offset + i*h.stride, di = dh.offset + i*dh.stride, ri = dhraw.offset + i*dhraw.stride;
+    		if (h.isFloat()) {
+    			for (int j = 0; j < h.cols; j++) {
+    				float v = h.fdata[hi + j];
+    				dhraw.fdata[ri + j] = (1f - v*v) * dh.fdata[di + j];
+    			}
+    		} else {
+    			for (int j = 0; j < h.cols; j++) {
+    				double v = h.data[hi + j];
+    				dhraw.data[ri + j] = (1.0 - v*v) * dh.data[di + j];
+    			}
+    		}
+    	}
+    }
+    
+    private static void samePrecision(Tensor a, Tensor b) {
+    	if (a.isFloat() != b.isFloat()) throw new RuntimeException("Mixed matrix precisions.");
+    }
+    
+    public static double[] ravel(Tensor a) {
+    	return a.convert(false).copy().data;
+    }
+    
+    public static void zero(Tensor a) {
+     	for (int i = 0; i < a.rows; i++) {
+    		int ai = a.offset + i*a.stride;
+    		if (a.isFloat()) {
+    			Arrays.fill(a.fdata, ai, ai + a.cols, 0f);
+    		} else {
+    			Arrays.fill(a.data, ai, ai + a.cols, 0.0);
     		}
     	}    	
     }
@@ -340,7 +1001,7 @@ public class Matrix {
     	double completeWeight = 0.0;
         for (double p : probabilities)
             completeWeight += p;
-        double r = Math.random() * completeWeight;
+        double r = ThreadLocalRandom.current().nextDouble() * completeWeight; // per-thread, so callers on many threads don't contend
         double countWeight = 0.0;
         for (int i = 0; i < range; i++) {
             countWeight += probabilities[i];
@@ -351,12 +1012,12 @@ public class Matrix {
     }
     
 	// debug utilities
-	public static void print(double[][] matrix) {
+	public static void print(Tensor matrix) {
 		String string = "[ ";
-		for (double[] r : matrix) {
+		for (int r = 0; r < matrix.rows; r++) {
 			string += "[ ";
-			for (double i : r) {
-				string += i + " ";
+			for (int c = 0; c < matrix.cols; c++) {
+				string += matrix.get(r, c) + " ";
 			}
 			string += "]";
 		}
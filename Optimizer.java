@@ -0,0 +1,10 @@
+package com.mran.charnn;
+
+// A parameter update rule. update() applies one step to <param> in place,
+// using <grad> and the rule's per-parameter <memory>, plus weight decay
+// of <reg> * param. The float[] form serves float32 models.
+public interface Optimizer {
+	public void update(double[] param, double[] grad, double[] memory, double reg);
+	
+	public void update(float[] param, float[] grad, float[] memory, double reg);
+}
@@ -0,0 +1,267 @@
+package com.mran.charnn;
+
+import java.util.Arrays;
+
+/******************************************************************************
+ *  A bounded cache of hidden states keyed by seed prefix.
+ *
+ *  The states sit in a compressed trie: each edge is labelled with a run
+ *  of seed characters, so nodes exist only where a state is stored or
+ *  two seeds part ways. While a seed is prefilled the state is stored
+ *  every INTERVAL characters and at the end, so a later seed that shares
+ *  only a preamble with it still resumes from the last stored state
+ *  inside the shared part and replays just the rest.
+ *
+ *  Memory is capped by a byte budget that counts every node, label and
+ *  stored state. Past the budget the least recently used state is
+ *  dropped, and the trie nodes it leaves unneeded are removed or merged
+ *  into their only child.
+ *  All methods are synchronized. A lookup holds the lock only to walk the
+ *  trie and copy one state out; the replay runs outside it.
+ *
+ *  The states belong to one Weights, so a cache can only be used with
+ *  generators made from that model.
+ *
+ ******************************************************************************/
+
+public class PrefixCache {
+	public static final int INTERVAL = 64;        // characters between stored states
+	private static final long NODE_BYTES = 64;    // rough footprint of a trie node, less its label
+	private static final int[] NO_LABEL = new int[0];
+	private static final Node[] NO_NODES = new Node[0];
+
+	private final Weights weights;
+	private final long maxBytes;
+	private final long stateBytes;
+
+	private final Node root = new Node(NO_LABEL, 0);
+	private final Node lru = new Node(NO_LABEL, 0); // sentinel: lru.next is the most recently used state
+	private long bytes = 0;
+	private int entries = 0;
+
+	private long lookups = 0, hits = 0;
+	private long savedChars = 0, replayedChars = 0;
+
+	public PrefixCache(Weights weights, long maxBytes) {
+		if (maxBytes < 0) throw new IllegalArgumentException("Cache budget must not be negative");
+		this.weights = weights;
+		this.maxBytes = maxBytes;
+		this.stateBytes = 16 + 8L*weights.hiddenSize();
+		lru.next = lru.prev = lru;
+	}
+
+	// Same contract as Generator.prefillSeeds(): feed <seeds> up to the last
+	// one into <generator>, which must be in its zero state, and return the
+	// last seed. Resumes from the longest cached prefix and caches the states
+	// it passes on the way.
+	public int prefill(Generator generator, int[] seeds) {
+		if (!generator.uses(weights)) throw new IllegalArgumentException("Generator belongs to a different model");
+		int target = seeds.length - 1; // the seeds fed in before sampling starts
+		int from = resume(generator, seeds, target);
+		if (from == 0) { generator.advance(seeds[0]); } // a fresh start feeds the first seed twice, like prefillSeeds()
+
+		while (from < target) {
+			int to = Math.min((from / INTERVAL + 1) * INTERVAL, target);
+			generator.prefill(seeds, from, to - from);
+			from = to;
+			store(seeds, to, generator.state());
+		}
+		return seeds[target];
+	}
+
+	// Load the state of the longest cached prefix of seeds[0 .. target) into <generator>; returns its length
+	private synchronized int resume(Generator generator, int[] seeds, int target) {
+		lookups++;
+		Node node = root, best = null;
+		while (node.depth < target) {
+			Node child = node.child(seeds[node.depth]);
+			if (child == null || child.depth > target || child.matched(seeds, node.depth) < child.label.length) break;
+			node = child;
+			if (node.state != null) best = node;
+		}
+		if (best == null) {
+			replayedChars += target;
+			return 0;
+		}
+		hits++;
+		savedChars += best.depth;
+		replayedChars += target - best.depth;
+		generator.setState(best.state);
+		best.unlink();
+		best.linkAfter(lru);
+		return best.depth;
+	}
+
+	// Remember <state> as the one after seeds[0 .. length)
+	private synchronized void store(int[] seeds, int length, double[] state) {
+		Node node = root;
+		while (node.depth < length) {
+			Node child = node.child(seeds[node.depth]);
+			if (child == null) {
+				// a new leaf for the rest of the seed
+				child = new Node(Arrays.copyOfRange(seeds, node.depth, length), length);
+				node.addChild(child);
+				bytes += NODE_BYTES + 4L*child.label.length;
+				node = child;
+				break;
+			}
+			int m = Math.min(child.matched(seeds, node.depth), length - node.depth);
+			if (m < child.label.length) {
+				// split the edge where the seed leaves it, or where it ends
+				Node middle = new Node(Arrays.copyOf(child.label, m), node.depth + m);
+				child.label = Arrays.copyOfRange(child.label, m, child.label.length);
+				node.replaceChild(child, middle);
+				middle.addChild(child);
+				bytes += NODE_BYTES;
+				child = middle;
+			}
+			node = child;
+		}
+		if (node.state == null) {
+			node.state = state.clone();
+			bytes += stateBytes;
+			entries++;
+		} else {
+			node.unlink();
+		}
+		node.linkAfter(lru);
+		while (bytes > maxBytes && lru.prev != lru) { evict(lru.prev); }
+	}
+
+	private void evict(Node node) {
+		node.unlink();
+		node.state = null;
+		bytes -= stateBytes;
+		entries--;
+		// drop the branch back up to the first node still in use
+		while (node != root && node.state == null && node.childCount == 0) {
+			node.parent.removeChild(node);
+			bytes -= NODE_BYTES + 4L*node.label.length;
+			node = node.parent;
+		}
+		// a node left with no state and a single child only splits an edge
+		if (node != root && node.state == null && node.childCount == 1) {
+			Node child = node.children[0];
+			int[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+			System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+			child.label = label;
+			node.parent.replaceChild(node, child);
+			bytes -= NODE_BYTES;
+		}
+	}
+
+	public synchronized void clear() {
+		root.children = NO_NODES;
+		root.childCount = 0;
+		lru.next = lru.prev = lru;
+		bytes = 0;
+		entries = 0;
+	}
+
+	// --- Metrics --- //
+	public synchronized long lookups() {
+		return lookups;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	// fraction of lookups that resumed from a cached state
+	public synchronized double hitRate() {
+		return lookups == 0 ? 0.0 : (double) hits / lookups;
+	}
+
+	// seed characters skipped thanks to the cache, and those replayed regardless
+	public synchronized long savedCharacters() {
+		return savedChars;
+	}
+
+	public synchronized long replayedCharacters() {
+		return replayedChars;
+	}
+
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	public synchronized int entries() {
+		return entries;
+	}
+
+	public synchronized String toString() {
+		return String.format("PrefixCache[%d states, %d/%d bytes, %d of %d lookups hit, %d chars saved, %d replayed]",
+				entries, bytes, maxBytes, hits, lookups, savedChars, replayedChars);
+	}
+
+	// A trie node, reached from its parent by the characters of <label>;
+	// the ones holding a state are also in the LRU list
+	private static final class Node {
+		Node parent;
+		int[] label;
+		final int depth; // seed characters from the root to here
+		Node[] children = NO_NODES;
+		int childCount = 0;
+		double[] state;
+		Node prev, next;
+
+		Node(int[] label, int depth) {
+			this.label = label;
+			this.depth = depth;
+		}
+
+		// the child whose label starts with <symbol>
+		Node child(int symbol) {
+			for (int i = 0; i < childCount; i++) {
+				if (children[i].label[0] == symbol) return children[i];
+			}
+			return null;
+		}
+
+		// how many leading characters of <label> match seeds[from ..]
+		int matched(int[] seeds, int from) {
+			int m = 0;
+			while (m < label.length && from + m < seeds.length && label[m] == seeds[from + m]) m++;
+			return m;
+		}
+
+		void addChild(Node child) {
+			if (childCount == children.length) { children = Arrays.copyOf(children, Math.max(2, childCount * 2)); }
+			child.parent = this;
+			children[childCount++] = child;
+		}
+
+		void replaceChild(Node old, Node child) {
+			for (int i = 0; i < childCount; i++) {
+				if (children[i] == old) {
+					children[i] = child;
+					child.parent = this;
+					return;
+				}
+			}
+		}
+
+		void removeChild(Node child) {
+			for (int i = 0; i < childCount; i++) {
+				if (children[i] == child) {
+					children[i] = children[--childCount];
+					children[childCount] = null;
+					return;
+				}
+			}
+		}
+
+		void linkAfter(Node head) {
+			prev = head;
+			next = head.next;
+			head.next.prev = this;
+			head.next = this;
+		}
+
+		void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = next = null;
+		}
+	}
+}
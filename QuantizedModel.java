@@ -0,0 +1,155 @@
+package com.mran.charnn;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/******************************************************************************
+ *  An inference-only ChaRNN with int8 weights.
+ *
+ *  Made offline by ChaRNN.quantize() and saved to its own small file, it
+ *  runs the recurrence and output projection on per-row-scaled int8
+ *  copies of Wxh, Whh and Why (see QuantizedTensor). The biases and the
+ *  hidden state stay double. The model is immutable once built, so any
+ *  number of threads can generate from one instance.
+ *
+ *  File layout: the Checkpoint block format under its own magic number,
+ *  holding the sizes and vocabulary, then each weight matrix as its row
+ *  scales and int8 elements, then the two biases.
+ *
+ ******************************************************************************/
+
+public class QuantizedModel {
+	public static final int MAGIC = 0x514E5243; // "CRNQ" as little-endian bytes
+	public static final int VERSION = 1;
+
+	private final int hiddenSize;
+	private final int vocabSize;
+	private final Vocabulary vocab;
+
+	private final QuantizedTensor Wxh, Whh, Why;
+	private final double[] bh, by;
+
+	public QuantizedModel(List<String> chars, QuantizedTensor Wxh, QuantizedTensor Whh, QuantizedTensor Why, double[] bh, double[] by) {
+		this.hiddenSize = Whh.rows;
+		this.vocabSize = chars.size();
+		if (Wxh.rows != hiddenSize || Wxh.cols != vocabSize || Whh.cols != hiddenSize || Why.rows != vocabSize || Why.cols != hiddenSize
+				|| bh.length != hiddenSize || by.length != vocabSize) {
+			throw new RuntimeException("Illegal matrix dimensions.");
+		}
+		this.vocab = new Vocabulary(chars);
+		this.Wxh = Wxh;
+		this.Whh = Whh;
+		this.Why = Why;
+		this.bh = bh.clone();
+		this.by = by.clone();
+	}
+
+	public void save(String path) throws IOException {
+		try (Checkpoint.Writer out = new Checkpoint.Writer(path, MAGIC, VERSION)) {
+			out.putInt(hiddenSize);
+			out.putInt(vocabSize);
+			for (int i = 0; i < vocabSize; i++) { out.putString(vocab.symbol(i)); }
+			for (QuantizedTensor w : new QuantizedTensor[] { Wxh, Whh, Why }) {
+				out.putInt(w.rows);
+				out.putInt(w.cols);
+				out.putTensor(new Tensor(w.scales, 1, w.rows, w.rows, 0), true);
+				out.putBytes(w.data);
+			}
+			out.putVector(bh, false);
+			out.putVector(by, false);
+		}
+	}
+
+	public static QuantizedModel load(String path) throws IOException {
+		Checkpoint.Reader in = new Checkpoint.Reader(path, MAGIC, VERSION);
+		int hiddenSize = in.getInt();
+		int vocabSize = in.getInt();
+		List<String> chars = new ArrayList<String>(vocabSize);
+		for (int i = 0; i < vocabSize; i++) { chars.add(in.getString()); }
+		QuantizedTensor[] w = new QuantizedTensor[3];
+		for (int k = 0; k < w.length; k++) {
+			int rows = in.getInt();
+			int cols = in.getInt();
+			Tensor scales = in.getTensor(true);
+			byte[] data = in.getBytes();
+			if (scales.cols != rows || data.length != rows*cols) throw new IOException("Quantized model weights do not match their shapes: " + path);
+			w[k] = new QuantizedTensor(data, scales.fdata, rows, cols);
+		}
+		double[] bh = in.getVector();
+		double[] by = in.getVector();
+		if (w[1].rows != hiddenSize) throw new IOException("Quantized model weights do not match its header: " + path);
+		try {
+			return new QuantizedModel(chars, w[0], w[1], w[2], bh, by);
+		} catch (RuntimeException e) {
+			throw new IOException("Quantized model weights do not match its header: " + path);
+		}
+	}
+
+	// Same contract as ChaRNN.forward(String, int): the seeds followed by <n> sampled characters
+	public String forward(String seeds, int n) {
+		return forward(seeds, n, new Sampler());
+	}
+
+	// As forward(String, int), drawing the characters with <sampler>
+	public String forward(String seeds, int n, Sampler sampler) {
+		if (sampler == null) throw new IllegalArgumentException("Sampler must not be null");
+		int[] seedIndexs = vocab.encode(seeds, 0);
+		double[] h = new double[hiddenSize];
+		double[] x = new double[hiddenSize];
+		double[] y = new double[vocabSize];
+		StringBuilder out = new StringBuilder(vocab.decode(seedIndexs));
+
+		// the seeds only move the hidden state along, the first one twice, as in Generator.prefillSeeds()
+		int index = 0;
+		if (seedIndexs.length > 0) {
+			advance(seedIndexs[0], h, x);
+			for (int t = 0; t + 1 < seedIndexs.length; t++) { advance(seedIndexs[t], h, x); }
+			index = seedIndexs[seedIndexs.length - 1];
+		}
+		for (int t = 0; t < n; t++) {
+			step(index, h, x, y);
+			index = sampler.sample(y, by);
+			out.append(vocab.symbol(index));
+		}
+		return out.toString();
+	}
+
+	// Per-character perplexity on a held-out text file; see ChaRNN.perplexity()
+	public double perplexity(String path) throws IOException {
+		String text = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+		int[] indices = vocab.encode(text, -1);
+		if (indices.length < 2) throw new IllegalArgumentException("Not enough known characters in " + path);
+		double[] h = new double[hiddenSize];
+		double[] x = new double[hiddenSize];
+		double[] y = new double[vocabSize];
+		double loss = 0;
+		for (int t = 0; t + 1 < indices.length; t++) {
+			step(indices[t], h, x, y);
+			Matrix.softmax(y, by, y);
+			loss -= Math.log(Math.max(y[indices[t+1]], Double.MIN_VALUE));
+		}
+		return Math.exp(loss / (indices.length - 1));
+	}
+
+	// Advance <h> by input <index> without computing what comes next; <x> is scratch
+	private void advance(int index, double[] h, double[] x) {
+		Wxh.column(index, x);
+		Whh.multiplyAdd(h, x);
+		Matrix.tanh(x, bh, h);
+	}
+
+	// Advance <h> by input <index> and write the next-character scores, less the bias, into <y>; <x> is scratch
+	private void step(int index, double[] h, double[] x, double[] y) {
+		advance(index, h, x);
+		Why.multiply(h, y);
+	}
+
+	// bytes of weight data, against 8 per weight for the double model
+	public long bytes() {
+		return Wxh.bytes() + Whh.bytes() + Why.bytes() + 8L*(bh.length + by.length);
+	}
+}
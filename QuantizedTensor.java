@@ -0,0 +1,94 @@
+package com.mran.charnn;
+
+import java.util.Arrays;
+
+/******************************************************************************
+ *  An int8 copy of a weight matrix with one scale per row.
+ *
+ *  Element (i, j) is approximately scales[i] * data[i*cols + j]. Each row
+ *  is scaled so its largest magnitude maps to 127, which keeps the error
+ *  of a row proportional to that row's own range rather than the whole
+ *  matrix's. The products are dequantized on the fly, so only the int8
+ *  weights and one float per row have to come from memory.
+ *
+ ******************************************************************************/
+
+public class QuantizedTensor {
+	public final byte[] data;
+	public final float[] scales;
+	public final int rows;
+	public final int cols;
+
+	public QuantizedTensor(byte[] data, float[] scales, int rows, int cols) {
+		if (rows < 0 || cols < 0 || data.length != rows*cols || scales.length != rows) throw new RuntimeException("Illegal matrix dimensions.");
+		this.data = data;
+		this.scales = scales;
+		this.rows = rows;
+		this.cols = cols;
+	}
+
+	public static QuantizedTensor quantize(Tensor a) {
+		byte[] q = new byte[a.rows*a.cols];
+		float[] scales = new float[a.rows];
+		for (int i = 0; i < a.rows; i++) {
+			double max = 0.0;
+			for (int j = 0; j < a.cols; j++) { max = Math.max(max, Math.abs(a.get(i, j))); }
+			if (max == 0.0) continue; // an all-zero row stays zero with a zero scale
+			float scale = (float) (max / 127.0);
+			scales[i] = scale;
+			for (int j = 0; j < a.cols; j++) {
+				long v = Math.round(a.get(i, j) / scale);
+				q[i*a.cols + j] = (byte) Math.max(-127, Math.min(127, v));
+			}
+		}
+		return new QuantizedTensor(q, scales, a.rows, a.cols);
+	}
+
+	// y = A * x
+	public void multiply(double[] x, double[] y) {
+		Arrays.fill(y, 0.0);
+		multiplyAdd(x, y);
+	}
+
+	// y += A * x
+	public void multiplyAdd(double[] x, double[] y) {
+		if (x.length != cols || y.length != rows) throw new RuntimeException("Illegal matrix dimensions.");
+		int i = 0;
+		// four rows at a time, sharing each load of x
+		for (; i + 3 < rows; i += 4) {
+			int a0 = i*cols, a1 = a0 + cols, a2 = a1 + cols, a3 = a2 + cols;
+			double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+			for (int j = 0; j < cols; j++) {
+				double xj = x[j];
+				s0 += data[a0 + j] * xj;
+				s1 += data[a1 + j] * xj;
+				s2 += data[a2 + j] * xj;
+				s3 += data[a3 + j] * xj;
+			}
+			y[i] += s0 * scales[i];
+			y[i + 1] += s1 * scales[i + 1];
+			y[i + 2] += s2 * scales[i + 2];
+			y[i + 3] += s3 * scales[i + 3];
+		}
+		for (; i < rows; i++) {
+			int ai = i*cols;
+			double sum = 0.0;
+			for (int j = 0; j < cols; j++)
+				sum += data[ai + j] * x[j];
+			y[i] += sum * scales[i];
+		}
+	}
+
+	// column <j> of A, i.e. y = A * e_j
+	public void column(int j, double[] y) {
+		if (j < 0 || j >= cols || y.length != rows) throw new RuntimeException("Illegal matrix dimensions.");
+		for (int i = 0, ai = j; i < rows; i++, ai += cols) {
+			y[i] = data[ai] * scales[i];
+		}
+	}
+
+	// bytes of weight data, for comparing against the full-precision model
+	public long bytes() {
+		return (long) data.length + 4L*scales.length;
+	}
+}
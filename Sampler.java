@@ -0,0 +1,186 @@
+package com.mran.charnn;
+
+import java.util.SplittableRandom;
+
+/******************************************************************************
+ *  Draws the next character from the output layer's scores.
+ *
+ *  Each Sampler owns a SplittableRandom stream, so threads and sessions
+ *  never contend for a shared generator, and a seeded Sampler repeats the
+ *  same draws. split() hands out further independent streams.
+ *
+ *  The softmax is fused into sampling: one pass adds the bias, scales by
+ *  1/temperature and exponentiates, and the draw is taken against the
+ *  unnormalized total, so no separate normalizing pass is made. With the
+ *  default settings that is all there is, followed by one scan that stops
+ *  at the drawn character. Top-k and nucleus (top-p) filtering find their
+ *  candidates with quickselect-style partitioning rather than a sort, in
+ *  expected time linear in the vocabulary. A temperature of 0 always
+ *  picks the most likely character.
+ *
+ *  A Sampler keeps scratch space, so like a Generator it belongs to one
+ *  thread at a time.
+ *
+ ******************************************************************************/
+
+public class Sampler {
+	private final SplittableRandom random;
+	private final double temperature;
+	private final int topK;       // 0 for no limit
+	private final double topP;    // 1 for no limit
+	private int[] order = new int[0]; // candidate indices for filtering, grown on first use
+
+	public Sampler() {
+		this(new SplittableRandom(), 1.0, 0, 1.0);
+	}
+
+	// a reproducible stream of draws
+	public Sampler(long seed) {
+		this(new SplittableRandom(seed), 1.0, 0, 1.0);
+	}
+
+	public Sampler(double temperature, int topK, double topP) {
+		this(new SplittableRandom(), temperature, topK, topP);
+	}
+
+	public Sampler(long seed, double temperature, int topK, double topP) {
+		this(new SplittableRandom(seed), temperature, topK, topP);
+	}
+
+	private Sampler(SplittableRandom random, double temperature, int topK, double topP) {
+		if (!(temperature >= 0) || Double.isInfinite(temperature)) throw new IllegalArgumentException("Temperature must be a non-negative number");
+		if (topK < 0) throw new IllegalArgumentException("Top-k must not be negative");
+		if (!(topP > 0 && topP <= 1)) throw new IllegalArgumentException("Top-p must be in (0, 1]");
+		this.random = random;
+		this.temperature = temperature;
+		this.topK = topK;
+		this.topP = topP;
+	}
+
+	// A sampler with the same settings and an independent stream, e.g. one
+	// per thread or session; seeded samplers split reproducibly
+	public Sampler split() {
+		return new Sampler(random.split(), temperature, topK, topP);
+	}
+
+	// Draw an index from softmax((logits + bias) / temperature), limited to
+	// the top-k and top-p candidates. <bias> may be null; <logits> is
+	// overwritten with the unnormalized weights.
+	public int sample(double[] logits, double[] bias) {
+		int n = logits.length;
+		if (n == 0 || (bias != null && bias.length != n)) throw new RuntimeException("Illegal matrix dimensions.");
+		double max = Double.NEGATIVE_INFINITY;
+		int best = 0;
+		for (int i = 0; i < n; i++) {
+			double v = bias != null ? logits[i] + bias[i] : logits[i];
+			logits[i] = v;
+			if (v > max) { max = v; best = i; }
+		}
+		if (temperature == 0) return best;
+
+		double scale = 1.0 / temperature, sum = 0.0;
+		for (int i = 0; i < n; i++) {
+			double w = Math.exp((logits[i] - max) * scale);
+			logits[i] = w;
+			sum += w;
+		}
+		if ((topK == 0 || topK >= n) && topP >= 1) {
+			// every character is a candidate: one draw against the running total
+			double r = random.nextDouble() * sum, cumulative = 0.0;
+			for (int i = 0; i < n; i++) {
+				cumulative += logits[i];
+				if (cumulative > r) return i;
+			}
+			return best; // only reached through rounding in the total
+		}
+
+		if (order.length < n) order = new int[n];
+		for (int i = 0; i < n; i++) { order[i] = i; }
+		int count = n;
+		if (topK > 0 && topK < n) {
+			selectTop(logits, 0, n, topK);
+			count = topK;
+			sum = 0.0;
+			for (int i = 0; i < count; i++) { sum += logits[order[i]]; }
+		}
+		if (topP < 1) {
+			count = nucleus(logits, count, topP * sum);
+			sum = 0.0;
+			for (int i = 0; i < count; i++) { sum += logits[order[i]]; }
+		}
+		double r = random.nextDouble() * sum, cumulative = 0.0;
+		for (int i = 0; i < count; i++) {
+			cumulative += logits[order[i]];
+			if (cumulative > r) return order[i];
+		}
+		return best;
+	}
+
+	// Rearrange order[lo .. hi) so its <k> largest weights come first
+	private void selectTop(double[] w, int lo, int hi, int k) {
+		int target = lo + k;
+		while (hi - lo > 1) {
+			long split = partition(w, lo, hi);
+			int above = (int) (split >>> 32), below = (int) split;
+			if (target <= above) {
+				hi = above;
+			} else if (target <= below) {
+				return; // the cut falls among weights equal to the pivot
+			} else {
+				lo = below;
+			}
+		}
+	}
+
+	// The length of the shortest prefix of the candidates, taken largest
+	// first, whose weights reach <mass>; order[0 .. length) ends up holding
+	// it, though not sorted. Only the candidates order[0 .. count) are used.
+	private int nucleus(double[] w, int count, double mass) {
+		int lo = 0, hi = count;
+		double taken = 0.0; // weight of order[0 .. lo), every one larger than the rest and short of <mass>
+		while (lo < hi) {
+			long split = partition(w, lo, hi);
+			int above = (int) (split >>> 32), below = (int) split;
+			double aboveMass = 0.0;
+			for (int i = lo; i < above; i++) { aboveMass += w[order[i]]; }
+			if (above > lo && taken + aboveMass >= mass) {
+				hi = above;
+				continue;
+			}
+			double pivot = w[order[above]];
+			double equalMass = (below - above) * pivot;
+			if (taken + aboveMass + equalMass >= mass) {
+				int needed = (int) Math.ceil((mass - taken - aboveMass) / pivot);
+				return above + Math.max(1, Math.min(needed, below - above));
+			}
+			taken += aboveMass + equalMass;
+			lo = below;
+		}
+		return Math.max(lo, 1);
+	}
+
+	// Three-way partition of order[lo .. hi) around the middle element's
+	// weight: larger weights first, then equal ones, then smaller. Returns
+	// the two boundaries packed as (above << 32) | below.
+	private long partition(double[] w, int lo, int hi) {
+		double pivot = w[order[(lo + hi) >>> 1]];
+		int above = lo, i = lo, below = hi;
+		while (i < below) {
+			double v = w[order[i]];
+			if (v > pivot) {
+				swap(above++, i++);
+			} else if (v < pivot) {
+				swap(i, --below);
+			} else {
+				i++;
+			}
+		}
+		return ((long) above << 32) | below;
+	}
+
+	private void swap(int i, int j) {
+		int t = order[i];
+		order[i] = order[j];
+		order[j] = t;
+	}
+}
@@ -0,0 +1,126 @@
+package com.mran.charnn;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/******************************************************************************
+ *  An interactive generation session that can be put aside and resumed.
+ *
+ *  A session remembers where its text got to: the hidden state after
+ *  everything fed in so far, and the last character, which is fed in at
+ *  the start of the next call. Each generate() call therefore costs only
+ *  the new text and the characters it asks for, however long the session
+ *  has run, and the result is the same as generating from the whole
+ *  history as one seed.
+ *
+ *  export() turns that position into a small binary snapshot and restore()
+ *  turns it back into a session, so a stateless front-end can keep the
+ *  snapshot in its own store between calls. A snapshot records the
+ *  fingerprint of the model it came from and is refused by any other.
+ *
+ *  Snapshot layout, little-endian: magic, version, model fingerprint,
+ *  hidden size, last character index (-1 before the first call), element
+ *  width (8 for float64, 4 for float32) and the hidden state.
+ *
+ ******************************************************************************/
+
+public class Session {
+	public static final int MAGIC = 0x534E5243; // "CRNS" as little-endian bytes
+	public static final int VERSION = 1;
+	private static final int HEADER_BYTES = 28;
+
+	private final Weights weights;
+	private final Generator generator;
+	private int last = -1; // the character not yet fed into the state, -1 before any text
+
+	public Session(Weights weights) {
+		this.weights = weights;
+		this.generator = weights.generator();
+	}
+
+	// A session drawing its characters with <sampler>
+	public Session(Weights weights, Sampler sampler) {
+		this(weights);
+		generator.setSampler(sampler);
+	}
+
+	// Feed in <text> and return the <n> characters generated after it. The
+	// first call's text is the seed and must not be empty.
+	public String generate(String text, int n) {
+		Vocabulary vocab = weights.vocabulary();
+		int[] indices = vocab.encode(text, 0);
+		int x;
+		if (last < 0) {
+			if (indices.length == 0) throw new IllegalArgumentException("Seed must not be empty");
+			x = generator.prefillSeeds(indices);
+		} else if (indices.length > 0) {
+			generator.advance(last);
+			generator.prefill(indices, 0, indices.length - 1);
+			x = indices[indices.length - 1];
+		} else {
+			x = last;
+		}
+		StringBuilder out = new StringBuilder(Math.max(n, 0));
+		for (int t = 0; t < n; t++) {
+			x = generator.sample(x);
+			out.append(vocab.symbol(x));
+		}
+		last = x;
+		return out.toString();
+	}
+
+	public byte[] export() {
+		return export(false);
+	}
+
+	// With <float32> the state is stored at single precision, halving the
+	// snapshot; a resumed session then drifts slightly from an unbroken one
+	public byte[] export(boolean float32) {
+		double[] h = generator.state();
+		int width = float32 ? 4 : 8;
+		ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + width*h.length).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putLong(weights.fingerprint());
+		out.putInt(h.length);
+		out.putInt(last);
+		out.putInt(width);
+		for (double v : h) {
+			if (float32) { out.putFloat((float) v); } else { out.putDouble(v); }
+		}
+		return out.array();
+	}
+
+	// The session saved in <snapshot>, continuing on <weights>
+	public static Session restore(Weights weights, byte[] snapshot) {
+		return restore(weights, snapshot, new Sampler());
+	}
+
+	// As restore(Weights, byte[]), drawing with <sampler>; a snapshot does
+	// not hold the position of the original session's random stream
+	public static Session restore(Weights weights, byte[] snapshot, Sampler sampler) {
+		ByteBuffer in = ByteBuffer.wrap(snapshot).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			if (in.getInt() != MAGIC) throw new IllegalArgumentException("Not a session snapshot");
+			int version = in.getInt();
+			if (version < 1 || version > VERSION) throw new IllegalArgumentException("Unsupported session snapshot version " + version);
+			if (in.getLong() != weights.fingerprint()) throw new IllegalArgumentException("Session snapshot was taken from a different model");
+			int hiddenSize = in.getInt();
+			int last = in.getInt();
+			int width = in.getInt();
+			if (hiddenSize != weights.hiddenSize() || last < -1 || last >= weights.vocabSize() || (width != 4 && width != 8)
+					|| in.remaining() != width*hiddenSize) {
+				throw new IllegalArgumentException("Corrupt session snapshot");
+			}
+			double[] h = new double[hiddenSize];
+			for (int i = 0; i < hiddenSize; i++) { h[i] = width == 8 ? in.getDouble() : in.getFloat(); }
+			Session session = new Session(weights, sampler);
+			session.generator.setState(h);
+			session.last = last;
+			return session;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Corrupt session snapshot");
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.mran.charnn;
+
+/******************************************************************************
+ *  A dense row-major matrix backed by a single flat array.
+ *
+ *  Element (i, j) lives at data[offset + i*stride + j], so a whole matrix
+ *  is one heap object and rows sit next to each other in memory. Views
+ *  (see row()) share the backing array with their parent.
+ *
+ *  A tensor is either float64, backed by <data>, or float32, backed by
+ *  <fdata>; the other array is null. Matrix kernels handle both, but the
+ *  tensors given to a single operation must share a precision unless the
+ *  kernel says otherwise.
+ *
+ ******************************************************************************/
+
+public class Tensor {
+	public final double[] data;
+	public final float[] fdata;
+	public final int rows;
+	public final int cols;
+	public final int stride;
+	public final int offset;
+
+	public Tensor(int rows, int cols) {
+		this(new double[rows*cols], rows, cols, cols, 0);
+	}
+
+	public Tensor(int rows, int cols, boolean float32) {
+		this(float32 ? null : new double[rows*cols], float32 ? new float[rows*cols] : null, rows, cols, cols, 0);
+	}
+
+	public Tensor(double[] data, int rows, int cols, int stride, int offset) {
+		this(data, null, rows, cols, stride, offset);
+	}
+
+	public Tensor(float[] fdata, int rows, int cols, int stride, int offset) {
+		this(null, fdata, rows, cols, stride, offset);
+	}
+
+	private Tensor(double[] data, float[] fdata, int rows, int cols, int stride, int offset) {
+		int length = data != null ? data.length : fdata.length;
+		if (rows < 0 || cols < 0 || stride < cols) throw new RuntimeException("Illegal matrix dimensions.");
+		if (rows > 0 && offset + (rows-1)*stride + cols > length) throw new RuntimeException("Illegal matrix dimensions.");
+		this.data = data;
+		this.fdata = fdata;
+		this.rows = rows;
+		this.cols = cols;
+		this.stride = stride;
+		this.offset = offset;
+	}
+
+	public boolean isFloat() {
+		return fdata != null;
+	}
+
+	public double get(int i, int j) {
+		int k = offset + i*stride + j;
+		return fdata != null ? fdata[k] : data[k];
+	}
+
+	public void set(int i, int j, double value) {
+		int k = offset + i*stride + j;
+		if (fdata != null) { fdata[k] = (float) value; } else { data[k] = value; }
+	}
+
+	// true if the elements are laid out back to back with no gaps
+	public boolean isContiguous() {
+		return stride == cols || rows <= 1;
+	}
+
+	public int size() {
+		return rows*cols;
+	}
+
+	// a 1-by-cols view of row <i>, sharing this tensor's storage
+	public Tensor row(int i) {
+		return new Tensor(data, fdata, 1, cols, stride, offset + i*stride);
+	}
+
+	// a view of <count> rows starting at row <start>, sharing this tensor's storage
+	public Tensor rows(int start, int count) {
+		if (start < 0 || count < 0 || start + count > rows) throw new RuntimeException("Illegal matrix dimensions.");
+		return new Tensor(data, fdata, count, cols, stride, offset + start*stride);
+	}
+
+	// a deep, contiguous copy
+	public Tensor copy() {
+		return convert(isFloat(), true);
+	}
+
+	// this tensor at the given precision; a contiguous copy if it has to change
+	public Tensor convert(boolean float32) {
+		return convert(float32, false);
+	}
+
+	private Tensor convert(boolean float32, boolean always) {
+		if (!always && float32 == isFloat()) return this;
+		Tensor b = new Tensor(rows, cols, float32);
+		Matrix.copy(this, b);
+		return b;
+	}
+
+	public static Tensor fromArray(double[][] a) {
+		int m = a.length;
+		int n = m == 0 ? 0 : a[0].length;
+		Tensor b = new Tensor(m, n);
+		for (int i = 0; i < m; i++) {
+			if (a[i].length != n) throw new RuntimeException("Illegal matrix dimensions.");
+			System.arraycopy(a[i], 0, b.data, i*n, n);
+		}
+		return b;
+	}
+
+	// jagged copy, used where the old double[][] layout is still needed (e.g. JSON)
+	public double[][] toArray() {
+		double[][] a = new double[rows][cols];
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < cols; j++)
+				a[i][j] = get(i, j);
+		return a;
+	}
+}
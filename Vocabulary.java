@@ -0,0 +1,115 @@
+package com.mran.charnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/******************************************************************************
+ *  The mapping between characters and vocabulary indices.
+ *
+ *  A character is one Unicode code point, so a surrogate pair is a single
+ *  symbol rather than two halves. Lookups go through primitive tables: a
+ *  direct array for the Basic Multilingual Plane and a small open-addressed
+ *  map for anything above it, so encoding text allocates nothing per
+ *  character. Decoding appends each index's symbol to a StringBuilder.
+ *
+ ******************************************************************************/
+
+public class Vocabulary {
+	private final String[] symbols;  // index -> character
+	private final int[] codePoints;  // index -> code point
+	private final int[] direct;      // BMP code point -> index, -1 if absent
+	private final int[] keys, values; // open-addressed code point -> index for the rest; key -1 is empty
+
+	// <symbols> in index order, each one code point (a lone surrogate from an old checkpoint counts as one)
+	public Vocabulary(List<String> symbols) {
+		int n = symbols.size();
+		this.symbols = symbols.toArray(new String[n]);
+		codePoints = new int[n];
+		int maxBmp = -1, supplementary = 0;
+		for (int i = 0; i < n; i++) {
+			String s = this.symbols[i];
+			if (s.isEmpty() || s.codePointCount(0, s.length()) != 1) throw new IllegalArgumentException("Not a single character: \"" + s + "\"");
+			int c = s.codePointAt(0);
+			codePoints[i] = c;
+			if (Character.isBmpCodePoint(c)) { maxBmp = Math.max(maxBmp, c); } else { supplementary++; }
+		}
+
+		direct = new int[maxBmp + 1];
+		Arrays.fill(direct, -1);
+		int capacity = Integer.highestOneBit(Math.max(1, supplementary) * 2) * 2;
+		keys = new int[supplementary > 0 ? capacity : 0];
+		values = new int[keys.length];
+		Arrays.fill(keys, -1);
+		for (int i = 0; i < n; i++) {
+			int c = codePoints[i];
+			if (indexOf(c) >= 0) throw new IllegalArgumentException("Duplicate character: \"" + this.symbols[i] + "\"");
+			if (Character.isBmpCodePoint(c)) {
+				direct[c] = i;
+			} else {
+				int slot = slot(c);
+				keys[slot] = c;
+				values[slot] = i;
+			}
+		}
+	}
+
+	// the code points set in <codePoints>, in order
+	public static Vocabulary of(BitSet codePoints) {
+		List<String> symbols = new ArrayList<String>(codePoints.cardinality());
+		for (int c = codePoints.nextSetBit(0); c >= 0; c = codePoints.nextSetBit(c + 1)) {
+			symbols.add(new String(Character.toChars(c)));
+		}
+		return new Vocabulary(symbols);
+	}
+
+	public int size() {
+		return symbols.length;
+	}
+
+	public String symbol(int index) {
+		return symbols[index];
+	}
+
+	public List<String> symbols() {
+		return new ArrayList<String>(Arrays.asList(symbols));
+	}
+
+	// the index of <codePoint>, or -1 if it is not in the vocabulary
+	public int indexOf(int codePoint) {
+		if (codePoint < direct.length) { return codePoint >= 0 ? direct[codePoint] : -1; }
+		if (keys.length == 0 || Character.isBmpCodePoint(codePoint)) { return -1; }
+		int slot = slot(codePoint);
+		return keys[slot] == codePoint ? values[slot] : -1;
+	}
+
+	// the slot holding <codePoint>, or the empty slot where it would go
+	private int slot(int codePoint) {
+		int mask = keys.length - 1;
+		int slot = (codePoint * 0x9E3779B9) >>> 16 & mask;
+		while (keys[slot] != -1 && keys[slot] != codePoint) { slot = (slot + 1) & mask; }
+		return slot;
+	}
+
+	// the index of each character of <text>; characters outside the
+	// vocabulary become <unknown>, or are dropped if <unknown> is negative
+	public int[] encode(CharSequence text, int unknown) {
+		int[] indices = new int[text.length()];
+		int count = 0;
+		for (int i = 0; i < text.length(); ) {
+			int c = Character.codePointAt(text, i);
+			i += Character.charCount(c);
+			int index = indexOf(c);
+			if (index < 0) { index = unknown; }
+			if (index >= 0) { indices[count++] = index; }
+		}
+		return count == indices.length ? indices : Arrays.copyOf(indices, count);
+	}
+
+	public String decode(int[] indices) {
+		StringBuilder out = new StringBuilder(indices.length);
+		for (int index : indices) { out.append(symbols[index]); }
+		return out.toString();
+	}
+}
@@ -0,0 +1,185 @@
+package com.mran.charnn;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/******************************************************************************
+ *  The trained parameters of a ChaRNN, frozen for serving.
+ *
+ *  A Weights holds the weight matrices, biases and vocabulary and nothing
+ *  that changes while generating: every per-request value lives in the
+ *  Generator (or generate() iterator) made for that request. One instance
+ *  can therefore be shared by any number of threads without locks, and a
+ *  new session costs its hidden-state buffers rather than a copy of the
+ *  model.
+ *
+ *  ChaRNN.weights() returns a private copy, so training the model further
+ *  never shows through to sessions already running on it.
+ *
+ ******************************************************************************/
+
+public class Weights {
+	final Tensor Wxh, Whh, Why;
+	final double[] bh, by;
+	private final Vocabulary vocab;
+	private volatile long fingerprint; // 0 until first asked for
+
+	// shares the given arrays; callers hand over ones nothing else writes to
+	Weights(Tensor Wxh, Tensor Whh, Tensor Why, double[] bh, double[] by, Vocabulary vocab) {
+		int hiddenSize = Whh.rows, vocabSize = vocab.size();
+		if (Wxh.rows != hiddenSize || Wxh.cols != vocabSize || Whh.cols != hiddenSize || Why.rows != vocabSize || Why.cols != hiddenSize
+				|| bh.length != hiddenSize || by.length != vocabSize) {
+			throw new RuntimeException("Illegal matrix dimensions.");
+		}
+		this.Wxh = Wxh;
+		this.Whh = Whh;
+		this.Why = Why;
+		this.bh = bh;
+		this.by = by;
+		this.vocab = vocab;
+	}
+
+	// The weights of a saved model, without its optimizer state or corpus
+	public static Weights load(String path) throws IOException {
+		if (!Checkpoint.isBinary(path)) return new ChaRNN(path, true).weights();
+		Checkpoint in = Checkpoint.read(path);
+		return new Weights(in.Wxh, in.Whh, in.Why, in.bh, in.by, new Vocabulary(in.chars));
+	}
+
+	public int hiddenSize() {
+		return Whh.rows;
+	}
+
+	public int vocabSize() {
+		return vocab.size();
+	}
+
+	public Vocabulary vocabulary() {
+		return vocab;
+	}
+
+	// An FNV-1a hash over the shapes, vocabulary and every weight, which
+	// tells apart models that differ in any parameter; computed once
+	public long fingerprint() {
+		long hash = fingerprint;
+		if (hash != 0) return hash;
+		hash = 0xcbf29ce484222325L;
+		hash = fnv(hash, hiddenSize());
+		for (int i = 0; i < vocab.size(); i++) { hash = fnv(hash, vocab.symbol(i).codePointAt(0)); }
+		for (Tensor w : new Tensor[] { Wxh, Whh, Why }) {
+			hash = fnv(hash, w.isFloat() ? 4 : 8);
+			for (int i = 0; i < w.rows; i++) {
+				for (int j = 0; j < w.cols; j++) { hash = fnv(hash, Double.doubleToLongBits(w.get(i, j))); }
+			}
+		}
+		for (double b : bh) { hash = fnv(hash, Double.doubleToLongBits(b)); }
+		for (double b : by) { hash = fnv(hash, Double.doubleToLongBits(b)); }
+		fingerprint = hash;
+		return hash;
+	}
+
+	// one FNV-1a round over a whole 64-bit word rather than a byte
+	private static long fnv(long hash, long word) {
+		return (hash ^ word) * 0x100000001b3L;
+	}
+
+	// A new generation session, starting from the zero state
+	public Generator generator() {
+		return new Generator(this);
+	}
+
+	// The seeds followed by <n> generated characters
+	public String forward(String seeds, int n) {
+		return forward(seeds, n, (PrefixCache) null);
+	}
+
+	// As forward(String, int), resuming the seeds from <cache> when it holds a prefix of them
+	public String forward(String seeds, int n, PrefixCache cache) {
+		int[] seedIndexs = vocab.encode(seeds, 0);
+		StringBuilder str = new StringBuilder(vocab.decode(seedIndexs));
+		Iterator<String> generated = generate(seeds, n, cache);
+		while (generated.hasNext()) { str.append(generated.next()); }
+		return str.toString();
+	}
+
+	// Up to <n> characters following <seeds>, each passed to <listener> as
+	// soon as it is sampled; stops early if the listener returns false or
+	// the thread is interrupted. Returns the number of characters generated.
+	public int generate(String seeds, int n, GenerationListener listener) {
+		Iterator<String> generated = generate(seeds, n);
+		int count = 0;
+		while (generated.hasNext() && !Thread.currentThread().isInterrupted()) {
+			count++;
+			if (!listener.onCharacter(generated.next())) { break; }
+		}
+		return count;
+	}
+
+	// The <n> characters following <seeds>, each generated only when next()
+	// asks for it, so a caller that stops early does no further work
+	public Iterator<String> generate(String seeds, int n) {
+		return generate(seeds, n, (PrefixCache) null);
+	}
+
+	// As generate(String, int), resuming the seeds from <cache> when it
+	// holds a prefix of them; a null cache replays the whole seed
+	public Iterator<String> generate(String seeds, int n, PrefixCache cache) {
+		return generate(seeds, n, cache, null);
+	}
+
+	// As generate(String, int, PrefixCache), drawing the characters with
+	// <sampler>; a null sampler gets a fresh unseeded one
+	public Iterator<String> generate(String seeds, int n, PrefixCache cache, Sampler sampler) {
+		int[] seedIndexs = vocab.encode(seeds, 0);
+		if (seedIndexs.length == 0) throw new IllegalArgumentException("Seed must not be empty");
+		Generation generation = new Generation(seedIndexs, n, cache);
+		if (sampler != null) generation.generator.setSampler(sampler);
+		return generation;
+	}
+
+	// The state of one generate() call; the seeds are fed in by the first next()
+	private class Generation implements Iterator<String> {
+		private final Generator generator = generator();
+		private final int[] seedIndexs;
+		private final PrefixCache cache;
+		private int x = -1, remaining;
+
+		Generation(int[] seedIndexs, int n, PrefixCache cache) {
+			this.seedIndexs = seedIndexs;
+			this.cache = cache;
+			this.remaining = n;
+		}
+
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		public String next() {
+			if (remaining <= 0) throw new NoSuchElementException();
+			if (x < 0) { x = cache != null ? cache.prefill(generator, seedIndexs) : generator.prefillSeeds(seedIndexs); }
+			x = generator.sample(x);
+			remaining--;
+			return vocab.symbol(x);
+		}
+	}
+
+	// Per-character perplexity on a held-out text file: exp of the mean
+	// cross-entropy of each character given the ones before it, starting
+	// from a zero hidden state. Characters outside the vocabulary are skipped.
+	public double perplexity(String path) throws IOException {
+		String text = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+		int[] indices = vocab.encode(text, -1);
+		if (indices.length < 2) throw new IllegalArgumentException("Not enough known characters in " + path);
+		Generator generator = generator();
+		double loss = 0;
+		for (int t = 0; t + 1 < indices.length; t++) {
+			double[] p = generator.step(indices[t]);
+			loss -= Math.log(Math.max(p[indices[t+1]], Double.MIN_VALUE));
+		}
+		return Math.exp(loss / (indices.length - 1));
+	}
+}
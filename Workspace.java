@@ -0,0 +1,51 @@
+package com.mran.charnn;
+
+// Preallocated activation buffers for one forward/backward pass of
+// ChaRNN.loss(), so a training step does not allocate per timestep.
+// Every timestep's activations are rows of one flat matrix, so the weight
+// gradients can be computed with a single gemm over the whole sequence.
+// With a minibatch, timestep t owns rows [t*batch, (t+1)*batch).
+// The buffers take the precision of the model's weights.
+public class Workspace {
+	public final Tensor hs;    // block t+1 is the hidden state after input t; block 0 is the initial state
+	public final Tensor ps;    // block t holds the logits, then the softmax output, then dy for input t
+	public final Tensor dhraw; // block t is the gradient at the tanh input for timestep t
+	
+	// Backward pass scratch, batch-by-hidden
+	public final Tensor dh;
+	public final Tensor dhnext;
+	
+	// Per-timestep views of the matrices above, made once up front
+	public final Tensor[] hStep, pStep, dhrawStep;
+	
+	public Workspace(int seqLength, int batch, int hiddenSize, int vocabSize) {
+		this(seqLength, batch, hiddenSize, vocabSize, false);
+	}
+	
+	public Workspace(int seqLength, int batch, int hiddenSize, int vocabSize, boolean float32) {
+		hs = new Tensor((seqLength+1)*batch, hiddenSize, float32);
+		ps = new Tensor(seqLength*batch, vocabSize, float32);
+		dhraw = new Tensor(seqLength*batch, hiddenSize, float32);
+		dh = new Tensor(batch, hiddenSize, float32);
+		dhnext = new Tensor(batch, hiddenSize, float32);
+		
+		hStep = new Tensor[seqLength+1];
+		pStep = new Tensor[seqLength];
+		dhrawStep = new Tensor[seqLength];
+		for (int t = 0; t <= seqLength; t++) { hStep[t] = hs.rows(t*batch, batch); }
+		for (int t = 0; t < seqLength; t++) {
+			pStep[t] = ps.rows(t*batch, batch);
+			dhrawStep[t] = dhraw.rows(t*batch, batch);
+		}
+	}
+	
+	// the longest input sequence these buffers can hold
+	public int length() {
+		return pStep.length;
+	}
+	
+	// the number of streams these buffers hold per timestep
+	public int batch() {
+		return dh.rows;
+	}
+}